@@ -0,0 +1,165 @@
+package io.clubhub.idscanner;
+
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+// Runs the uploader against a stand-in server: what goes over the wire, and what happens to the journal
+// when the server takes a batch, answers with an error or doesn't answer at all
+public class ScanUploaderTest extends AndroidTestCase {
+    private static final String RECORD = "{\"BD\":\"19900115\",\"Sex\":\"1\",\"age\":30}";
+    private static final int RECORD_COUNT = 3;
+
+    private static final int UPLOAD_TIMEOUT = 1000;
+    private static final long INITIAL_RETRY_DELAY = 500;
+    // Covers a timeout plus a back off with plenty to spare on a slow emulator
+    private static final long WAIT = 10000;
+
+    private MockWebServer mServer;
+    private final BlockingQueue<MockResponse> mResponses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<RecordedRequest> mRequests = new LinkedBlockingQueue<>();
+
+    private File mJournalFile;
+    private ScanJournal mScanJournal;
+    private ScanUploader mScanUploader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.add(request);
+                MockResponse response = mResponses.poll();
+                return response != null ? response : new MockResponse().setResponseCode(200);
+            }
+        });
+        mServer.start();
+
+        mJournalFile = new File(getContext().getCacheDir(), "scan_uploader_test_journal");
+        mJournalFile.delete();
+        mScanJournal = new ScanJournal(mJournalFile);
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            mScanJournal.append(RECORD);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mScanUploader != null) {
+            mScanUploader.release();
+        }
+        mScanJournal.close();
+        mJournalFile.delete();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testBatchIsSentGzippedAndAcknowledgedOnSuccess() throws Exception {
+        mResponses.add(new MockResponse().setResponseCode(201));
+        startUploader();
+
+        RecordedRequest request = takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+
+        JSONArray batch = readBatch(request);
+        assertEquals(RECORD_COUNT, batch.length());
+        JSONObject scan = batch.getJSONObject(0);
+        assertEquals("1990-01-15", scan.getString("date_of_birth"));
+        assertEquals("M", scan.getString("gender"));
+        assertEquals(30, scan.getInt("age"));
+
+        assertTrue("Batch was never acknowledged", waitForPendingCount(0));
+        assertNull(mRequests.poll(INITIAL_RETRY_DELAY * 2, TimeUnit.MILLISECONDS));
+    }
+
+    public void testErrorResponseRewindsAndRetriesAfterBackOff() throws Exception {
+        mResponses.add(new MockResponse().setResponseCode(500));
+        startUploader();
+
+        String failedBody = readBatch(takeRequest()).toString();
+        long failedTime = System.currentTimeMillis();
+
+        RecordedRequest retry = takeRequest();
+        long retryDelay = System.currentTimeMillis() - failedTime;
+        // The back off has up to a quarter taken off as jitter
+        assertTrue("Retried after only " + retryDelay + "ms", retryDelay >= INITIAL_RETRY_DELAY * 3 / 4);
+        // Rewound, so the same scans go up again
+        assertEquals(failedBody, readBatch(retry).toString());
+
+        assertTrue("Retried batch was never acknowledged", waitForPendingCount(0));
+    }
+
+    public void testTimeoutRewindsAndRetries() throws Exception {
+        mResponses.add(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        startUploader();
+
+        String timedOutBody = readBatch(takeRequest()).toString();
+        assertEquals(RECORD_COUNT, mScanJournal.getPendingCount());
+
+        RecordedRequest retry = takeRequest();
+        assertEquals(timedOutBody, readBatch(retry).toString());
+        assertTrue("Retried batch was never acknowledged", waitForPendingCount(0));
+    }
+
+    private void startUploader() {
+        String url = "http://" + mServer.getHostName() + ":" + mServer.getPort() + "/scans";
+        // Scans already in the journal go up as soon as the uploader starts
+        mScanUploader = new ScanUploader(mScanJournal, new HTTPHelper(getContext(), url, UPLOAD_TIMEOUT),
+                INITIAL_RETRY_DELAY);
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        RecordedRequest request = mRequests.poll(WAIT, TimeUnit.MILLISECONDS);
+        assertNotNull("No request reached the server", request);
+        return request;
+    }
+
+    private boolean waitForPendingCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (mScanJournal.getPendingCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static JSONArray readBatch(RecordedRequest request) throws Exception {
+        InputStream in = new GZIPInputStream(request.getBody().inputStream());
+        try {
+            return new JSONArray(readFully(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,143 @@
+package io.clubhub.idscanner;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Saves intermediate images for debugging without holding up the decode thread. The caller only pays for
+// copying the pixels out, the file is written later on a single background thread as a raw greyscale
+// PGM so there is no encode. When the writer falls behind, new images are dropped rather than queued
+public class DebugImageWriter {
+    private static final String TAG = "DebugImageWriter";
+    private static final String ALBUM_NAME = "clubhub";
+    private static final int MAX_QUEUED_IMAGES = 4;
+
+    private static final BlockingQueue<Snapshot> QUEUE = new ArrayBlockingQueue<>(MAX_QUEUED_IMAGES);
+    private static final AtomicInteger SUBMITTED_COUNT = new AtomicInteger();
+    private static final AtomicInteger DROPPED_COUNT = new AtomicInteger();
+
+    // Keeps one image in every SAMPLING_RATE, 0 turns saving off. Set per build type in build.gradle
+    private static final int SAMPLING_RATE = BuildConfig.DEBUG_IMAGE_SAMPLING_RATE;
+    private static Thread sWriterThread;
+
+    private static class Snapshot {
+        final String mFileName;
+        final int mWidth;
+        final int mHeight;
+        final byte[] mPixels;
+
+        Snapshot(String fileName, int width, int height, byte[] pixels) {
+            mFileName = fileName;
+            mWidth = width;
+            mHeight = height;
+            mPixels = pixels;
+        }
+    }
+
+    public static int getDroppedCount() {
+        return DROPPED_COUNT.get();
+    }
+
+    // The mat can be released or changed as soon as this returns, colour mats are saved as greyscale
+    public static void submit(Mat mat, String fileName) {
+        if (SAMPLING_RATE <= 0 || SUBMITTED_COUNT.getAndIncrement() % SAMPLING_RATE != 0) {
+            return;
+        }
+
+        // Checked before the copy, so dropping an image costs nothing
+        if (QUEUE.remainingCapacity() == 0) {
+            DROPPED_COUNT.incrementAndGet();
+            return;
+        }
+
+        if (!QUEUE.offer(takeSnapshot(mat, fileName))) {
+            DROPPED_COUNT.incrementAndGet();
+            return;
+        }
+        startWriterThread();
+    }
+
+    private static Snapshot takeSnapshot(Mat mat, String fileName) {
+        Mat grey = mat;
+
+        if (mat.type() != CvType.CV_8UC1) {
+            grey = new Mat();
+            Imgproc.cvtColor(mat, grey, mat.channels() == 4 ? Imgproc.COLOR_RGBA2GRAY : Imgproc.COLOR_RGB2GRAY);
+        }
+
+        int width = grey.cols();
+        int height = grey.rows();
+        byte[] pixels = new byte[width * height];
+
+        if (grey.isContinuous()) {
+            grey.get(0, 0, pixels);
+        } else {
+            // Submats aren't continuous, so the pixels are copied out a row at a time
+            byte[] row = new byte[width];
+            for (int y = 0; y < height; y++) {
+                grey.get(y, 0, row);
+                System.arraycopy(row, 0, pixels, y * width, width);
+            }
+        }
+
+        if (grey != mat) {
+            grey.release();
+        }
+        return new Snapshot(fileName, width, height, pixels);
+    }
+
+    private static synchronized void startWriterThread() {
+        if (sWriterThread != null) {
+            return;
+        }
+
+        sWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                while (true) {
+                    try {
+                        write(QUEUE.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, TAG);
+        sWriterThread.setDaemon(true);
+        sWriterThread.start();
+    }
+
+    private static void write(Snapshot snapshot) {
+        File destFile = new File(FileManager.getExternalAlbumStorageDir(ALBUM_NAME), snapshot.mFileName + ".pgm");
+        OutputStream out = null;
+
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(destFile));
+            out.write(("P5\n" + snapshot.mWidth + " " + snapshot.mHeight + "\n255\n").getBytes("US-ASCII"));
+            out.write(snapshot.mPixels);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + destFile, e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
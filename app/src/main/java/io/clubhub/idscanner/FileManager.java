@@ -14,20 +14,104 @@ import org.opencv.core.Mat;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * Created by behnamreyhani-masoleh on 15-12-17.
  */
 public class FileManager {
+    private static final String TAG = "FileManager";
+    // Scans waiting to be pushed to the server, kept in app storage so they survive a restart
+    private static final String SCAN_JOURNAL_FILE = "scan_journal";
+
     private Context mContext;
     private ClubHubSharedPreferences mSharedPrefs;
+    private ScanJournal mScanJournal;
+    private ScanUploader mScanUploader;
+    private UploadScheduler mUploadScheduler;
+    private NightStats mNightStats;
+    // Version of mNightStats that was last checkpointed
+    private int mCheckpointedNightStatsVersion;
 
     public FileManager(Context context) {
         mContext = context;
         mSharedPrefs = new ClubHubSharedPreferences();
+        mNightStats = new NightStats();
+        mSharedPrefs.loadNightStats(mNightStats);
+        openScanJournal();
+    }
+
+    public NightStats getNightStats() {
+        return mNightStats;
+    }
+
+    // Called on a timer and when the scanner goes to the background, skipped if no one came in since
+    public void checkpointNightStats() {
+        int version = mNightStats.getVersion();
+
+        if (version != mCheckpointedNightStatsVersion) {
+            mSharedPrefs.checkpointNightStats(mNightStats);
+            mCheckpointedNightStatsVersion = version;
+        }
+    }
+
+    private void openScanJournal() {
+        try {
+            mScanJournal = new ScanJournal(new File(mContext.getFilesDir(), SCAN_JOURNAL_FILE));
+            mSharedPrefs.discardLegacyCache();
+            mScanUploader = new ScanUploader(mScanJournal, new HTTPHelper(mContext));
+            mUploadScheduler = new UploadScheduler(mContext, mScanJournal, mScanUploader);
+            mUploadScheduler.start();
+        } catch (IOException e) {
+            // Scanning still works without it, the scans just won't be kept for the server
+            Log.e(TAG, "Unable to open the scan journal", e);
+        }
+    }
+
+    // Null if the journal couldn't be opened
+    public ScanJournal getScanJournal() {
+        return mScanJournal;
+    }
+
+    // Null if the journal couldn't be opened
+    public UploadScheduler getUploadScheduler() {
+        return mUploadScheduler;
+    }
+
+    // Makes sure every scan so far is on disk, called when the scanner goes to the background
+    public void syncScanJournal() {
+        if (mScanJournal == null) {
+            return;
+        }
+
+        try {
+            mScanJournal.sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to sync the scan journal", e);
+        }
     }
 
-    private static File getExternalAlbumStorageDir(String albumName) {
+    public void close() {
+        if (mScanJournal == null) {
+            return;
+        }
+
+        if (mScanUploader != null) {
+            mUploadScheduler.stop();
+            mScanUploader.release();
+            mUploadScheduler = null;
+            mScanUploader = null;
+        }
+
+        try {
+            mScanJournal.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close the scan journal", e);
+        }
+        mScanJournal = null;
+    }
+
+    static File getExternalAlbumStorageDir(String albumName) {
         // Get the directory for the user's public pictures directory.
         File file = new File(Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES), albumName);
@@ -85,93 +169,108 @@ public class FileManager {
     }
 
     public class ClubHubSharedPreferences {
-        /* This shared pref is used to temporary hold CACHE_PREF_THRESHOLD scanned info before it
-         gets pushed in bulk to the server once the threshold is reached.  If a network is not available
-         it will go past the threshold, and will push to the server once a network connection is reached.
-         This also holds the number of data info's in the cache.
+        /* Scans are held in the ScanJournal until CACHE_PREF_THRESHOLD of them can be pushed in bulk
+         to the server.  If a network is not available it will go past the threshold, and will push to
+         the server once a network connection is reached.
         */
-        public static final String SCANNED_INFO_CACHE_PREF = "scanned_info_cache";
-        // Will attempt to push in bulk to the server when the value for this hits CACHE_PREF_THRESHOLD
-        public static final String PEOPLE_IN_CACHE_COUNT_KEY = "people_in_cache_count_key";
-        // Needs to be appended by the value of PEOPLE_IN_CACHE_COUNT_KEY
-        public static final String CACHE_PERSON_KEY = "cache_person_key-";
+        // Where scans were cached before the journal, only read to move them over
+        private static final String SCANNED_INFO_CACHE_PREF = "scanned_info_cache";
+        private static final String PEOPLE_IN_CACHE_COUNT_KEY = "people_in_cache_count_key";
 
         public static final int CACHE_PREF_THRESHOLD = 10;
 
-        /* Stores the total # of people entered, and # of males from the Night.  This pref needs to
-        be cleared after the end of the night scanning is over.  This information will be used to
-        show to the bouncer, the guy/girl ratio and # of people he's let in on the UI.
+        /* Checkpoint of the NightStats counts for the night, so they survive the app being killed.  This
+        pref needs to be cleared after the end of the night scanning is over.  This information will be
+        used to show to the bouncer, the guy/girl ratio and # of people he's let in on the UI.
         */
         public static final String NIGHT_DATA_PREF = "night_data_pref";
         public static final String TOTAL_PEOPLE_COUNT_KEY = "total_people_count_key";
         public static final String MALE_COUNT_KEY = "male_count_key";
-
-        public void registerChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-            SharedPreferences nightData = mContext.getSharedPreferences(NIGHT_DATA_PREF,
-                    Context.MODE_PRIVATE);
-            nightData.registerOnSharedPreferenceChangeListener(listener);
-        }
-
-        public void unregisterChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-            SharedPreferences nightData = mContext.getSharedPreferences(NIGHT_DATA_PREF,
-                    Context.MODE_PRIVATE);
-            nightData.unregisterOnSharedPreferenceChangeListener(listener);
-        }
+        // Need to be appended by the age band or hour of the day
+        public static final String AGE_BAND_COUNT_KEY = "age_band_count_key-";
+        public static final String HOURLY_COUNT_KEY = "hourly_count_key-";
+        // When the night the hourly counts are for ended, they start again with the next entry after it
+        public static final String NIGHT_END_KEY = "night_end_key";
 
         public synchronized void storeData(JSONObject jsonObject) {
             storeNightData(jsonObject);
             storeCacheData(jsonObject);
         }
 
+        // Only goes to memory, the counts reach the pref at the next checkpoint
         public void storeNightData(JSONObject jsonObject) {
-            SharedPreferences nightData = mContext.getSharedPreferences(NIGHT_DATA_PREF,
-                    Context.MODE_PRIVATE);
-            int nightCount = nightData.getInt(TOTAL_PEOPLE_COUNT_KEY, 0);
-            int maleCount = nightData.getInt(MALE_COUNT_KEY,0);
-
-            SharedPreferences.Editor editor = nightData.edit();
-            editor.putInt(TOTAL_PEOPLE_COUNT_KEY, ++nightCount);
-            
             try {
-                if (jsonObject.getString(IDDictionary.GENDER_KEY).equals("1")) {
-                    editor.putInt(MALE_COUNT_KEY, ++maleCount);
-                }
+                mNightStats.recordEntry(jsonObject.getString(IDDictionary.GENDER_KEY).equals("1"),
+                        jsonObject.getInt("age"), System.currentTimeMillis());
             } catch (Exception e) {
                 e.printStackTrace();
-                return;
             }
-            
-            editor.commit();
         }
 
-        public void storeCacheData(JSONObject jsonObject) {
-            SharedPreferences cacheData = mContext.getSharedPreferences(SCANNED_INFO_CACHE_PREF,
+        private void loadNightStats(NightStats stats) {
+            SharedPreferences nightData = mContext.getSharedPreferences(NIGHT_DATA_PREF,
                     Context.MODE_PRIVATE);
-            int dataInCacheCount = cacheData.getInt(PEOPLE_IN_CACHE_COUNT_KEY, 0);
-            SharedPreferences.Editor editor = cacheData.edit();
+            int[] ageBandCounts = new int[NightStats.AGE_BAND_LOWER_BOUNDS.length];
+            int[] hourlyCounts = new int[NightStats.HOURS_IN_DAY];
+
+            for (int band = 0; band < ageBandCounts.length; band++) {
+                ageBandCounts[band] = nightData.getInt(AGE_BAND_COUNT_KEY + band, 0);
+            }
+            for (int hour = 0; hour < hourlyCounts.length; hour++) {
+                hourlyCounts[hour] = nightData.getInt(HOURLY_COUNT_KEY + hour, 0);
+            }
+
+            stats.restore(nightData.getInt(TOTAL_PEOPLE_COUNT_KEY, 0), nightData.getInt(MALE_COUNT_KEY, 0),
+                    ageBandCounts, hourlyCounts, nightData.getLong(NIGHT_END_KEY, 0));
+        }
 
-            editor.putInt(PEOPLE_IN_CACHE_COUNT_KEY, ++dataInCacheCount);
-            editor.putString(CACHE_PERSON_KEY + dataInCacheCount, jsonObject.toString());
-            editor.commit();
+        // apply() hands the write to a background thread, the caller never waits on the disk
+        private void checkpointNightStats(NightStats stats) {
+            SharedPreferences.Editor editor = mContext.getSharedPreferences(NIGHT_DATA_PREF,
+                    Context.MODE_PRIVATE).edit();
+            editor.putInt(TOTAL_PEOPLE_COUNT_KEY, stats.getTotalCount());
+            editor.putInt(MALE_COUNT_KEY, stats.getMaleCount());
 
-            if (dataInCacheCount >= CACHE_PREF_THRESHOLD) {
-                // Need to push data to server (do this in this async task??)
+            for (int band = 0; band < NightStats.AGE_BAND_LOWER_BOUNDS.length; band++) {
+                editor.putInt(AGE_BAND_COUNT_KEY + band, stats.getAgeBandCount(band));
             }
+            for (int hour = 0; hour < NightStats.HOURS_IN_DAY; hour++) {
+                editor.putInt(HOURLY_COUNT_KEY + hour, stats.getHourlyCount(hour));
+            }
+            editor.putLong(NIGHT_END_KEY, stats.getNightEndMillis());
+            editor.apply();
         }
 
-        public String getCurrentNightStats(){
-            SharedPreferences nightData = mContext.getSharedPreferences(NIGHT_DATA_PREF,
+        // Appending doesn't touch the records already in the journal, so it costs the same all night
+        public void storeCacheData(JSONObject jsonObject) {
+            if (mScanJournal == null) {
+                return;
+            }
+
+            try {
+                mScanJournal.append(jsonObject.toString());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to add scan to the journal", e);
+                return;
+            }
+
+            // Goes up with the next batch, straight away once CACHE_PREF_THRESHOLD scans are waiting
+            if (mScanUploader != null) {
+                mScanUploader.onScanStored();
+            }
+        }
+
+        // The old shared pref cache was never drained, every scan in it was already posted to the server
+        // as it was made, so it is dropped rather than moved into the journal and uploaded a second time
+        private void discardLegacyCache() {
+            SharedPreferences cacheData = mContext.getSharedPreferences(SCANNED_INFO_CACHE_PREF,
                     Context.MODE_PRIVATE);
-            int totalCount = nightData.getInt(TOTAL_PEOPLE_COUNT_KEY, 0);
-            int maleCount = nightData.getInt(MALE_COUNT_KEY, 0);
-            
-            if (totalCount == 0) {
-                return "People Entered: 0";
+            int dataInCacheCount = cacheData.getInt(PEOPLE_IN_CACHE_COUNT_KEY, 0);
+
+            if (dataInCacheCount > 0) {
+                Log.i(TAG, "Dropping " + dataInCacheCount + " already uploaded scans from the old cache");
+                cacheData.edit().clear().apply();
             }
-            
-            double malePercentage = ((double)maleCount/totalCount) * 100;
-            return "People Entered: " + totalCount + "\nMale: " + String.format("%.2f", malePercentage)
-                    + "%, Female: " + String.format("%.2f", 100d-malePercentage) + "%";
         }
     }
 }
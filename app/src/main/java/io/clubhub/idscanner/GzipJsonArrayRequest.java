@@ -0,0 +1,76 @@
+package io.clubhub.idscanner;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.json.JSONArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+// POSTs a JSON array gzipped, the response body isn't used. The body is compressed when the request is
+// made, so that happens on the caller's thread rather than on one of Volley's network threads
+public class GzipJsonArrayRequest extends Request<Integer> {
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final Response.Listener<Integer> mListener;
+    private final byte[] mBody;
+
+    public GzipJsonArrayRequest(String url, JSONArray jsonArray, Response.Listener<Integer> listener,
+                                Response.ErrorListener errorListener) throws IOException {
+        super(Method.POST, url, errorListener);
+        mListener = listener;
+        mBody = gzip(jsonArray.toString().getBytes("UTF-8"));
+        setShouldCache(false);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+
+        try {
+            gzipOut.write(data);
+        } finally {
+            gzipOut.close();
+        }
+        return out.toByteArray();
+    }
+
+    public int getBodySize() {
+        return mBody.length;
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return mBody;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Encoding", "gzip");
+        return headers;
+    }
+
+    // Hands back the status code, the server's reply is only an echo of what was sent
+    @Override
+    protected Response<Integer> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(response.statusCode, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Override
+    protected void deliverResponse(Integer statusCode) {
+        mListener.onResponse(statusCode);
+    }
+}
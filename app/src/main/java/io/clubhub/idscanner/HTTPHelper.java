@@ -3,43 +3,93 @@ package io.clubhub.idscanner;
 import android.content.Context;
 import android.util.Log;
 
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.toolbox.Volley;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.List;
+
 import io.clubhub.idscanner.imageutils.IDDictionary;
 
 /**
  * Created by benreyhani on 2017-03-13.
  */
-public class HTTPHelper {
+public class HTTPHelper implements ScanBatchSender {
+    private static final String TAG = "HTTPHelper";
     public static final String SCANS_URL = "http://ec2-54-146-241-77.compute-1.amazonaws.com:3000/scans";
+    // Long enough for a batch over a slow club connection, failed batches are retried by ScanUploader
+    private static final int UPLOAD_TIMEOUT = 15000;
+
+    // One queue for the whole app, each queue brings its own network threads and disk cache
+    private static RequestQueue sRequestQueue;
+
     private Context mContext;
+    private final String mScansUrl;
+    private final int mUploadTimeout;
 
     public HTTPHelper(Context context) {
-        mContext = context;
+        this(context, SCANS_URL, UPLOAD_TIMEOUT);
     }
 
-    public void sendScanData(JSONObject jsonObject) {
-        RequestQueue requestQueue = Volley.newRequestQueue(mContext);
-        JsonObjectRequest jsonRequest = new JsonObjectRequest(Request.Method.POST, SCANS_URL, convertToServerSchema(jsonObject),
-                new Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject response) {
-                    }
-                }, new Response.ErrorListener() {
+    // For pointing the uploads at a stand-in server
+    HTTPHelper(Context context, String scansUrl, int uploadTimeout) {
+        mContext = context.getApplicationContext();
+        mScansUrl = scansUrl;
+        mUploadTimeout = uploadTimeout;
+    }
+
+    private RequestQueue getRequestQueue() {
+        synchronized (HTTPHelper.class) {
+            if (sRequestQueue == null) {
+                sRequestQueue = Volley.newRequestQueue(mContext);
+            }
+            return sRequestQueue;
+        }
+    }
+
+    // Sends the journal records as one gzipped array. Records that can't be read are left out, they are
+    // acknowledged along with the rest of the batch
+    @Override
+    public int send(List<String> records, final Callback callback) throws IOException {
+        JSONArray batch = new JSONArray();
+        int unreadable = 0;
+        JSONException lastError = null;
+
+        for (String record : records) {
+            try {
+                batch.put(convertToServerSchema(new JSONObject(record)));
+            } catch (JSONException e) {
+                unreadable++;
+                lastError = e;
+            }
+        }
+        if (unreadable > 0) {
+            Log.e(TAG, "Dropping " + unreadable + " unreadable scan records of " + records.size(), lastError);
+        }
+
+        GzipJsonArrayRequest request = new GzipJsonArrayRequest(mScansUrl, batch, new Response.Listener<Integer>() {
+            @Override
+            public void onResponse(Integer statusCode) {
+                callback.onSent();
+            }
+        }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
+                callback.onFailed(error.networkResponse != null ? error.networkResponse.statusCode : 0, error);
             }
         });
-        // Add the request to the RequestQueue.
-        requestQueue.add(jsonRequest);
+        request.setRetryPolicy(new DefaultRetryPolicy(mUploadTimeout, 0, 1f));
+        getRequestQueue().add(request);
+        return request.getBodySize();
     }
 
 /* Needs to be in this format
@@ -51,7 +101,7 @@ public class HTTPHelper {
     }
     */
 
-    private JSONObject convertToServerSchema(JSONObject original) {
+    static JSONObject convertToServerSchema(JSONObject original) {
         JSONObject converted = new JSONObject();
         
         try {
@@ -66,14 +116,14 @@ public class HTTPHelper {
         return converted;
     }
 
-    // YYYYMMDD to YYYY-MM-DD
-    private String convertDate(String date) {
+    // YYYYMMDD to YYYY-MM-DD, BD is always stored as YYYYMMDD whatever the card's format
+    private static String convertDate(String date) {
         return date.substring(0, 4) + "-" + date.substring(4, 6) + "-" + date.substring(6);
     }
 
     public void getScanData() {
-        RequestQueue requestQueue = Volley.newRequestQueue(mContext);
-        StringRequest stringRequest = new StringRequest(Request.Method.GET, SCANS_URL,
+        RequestQueue requestQueue = getRequestQueue();
+        StringRequest stringRequest = new StringRequest(Request.Method.GET, mScansUrl,
                 new Response.Listener<String>() {
                     @Override
                     public void onResponse(String response) {
@@ -0,0 +1,210 @@
+package io.clubhub.idscanner;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Live counts for the night, updated from the decode thread with atomics so recording an entry never
+// blocks or touches the disk. The UI listens here directly, and the counts are checkpointed to shared
+// prefs now and then by ClubHubSharedPreferences
+public class NightStats {
+    // Youngest age in each band, guests younger than the first band are counted in it
+    public static final int[] AGE_BAND_LOWER_BOUNDS = {19, 22, 25, 30, 40};
+    public static final int HOURS_IN_DAY = 24;
+    // Entries before this hour of the morning still belong to the night before
+    private static final int NIGHT_END_HOUR = 8;
+
+    private final AtomicInteger mTotalCount = new AtomicInteger();
+    private final AtomicInteger mMaleCount = new AtomicInteger();
+    private final AtomicIntegerArray mAgeBandCounts = new AtomicIntegerArray(AGE_BAND_LOWER_BOUNDS.length);
+    // Entries by hour of the day they came in at
+    private final AtomicIntegerArray mHourlyCounts = new AtomicIntegerArray(HOURS_IN_DAY);
+    // Bumped on every change, lets a checkpoint be skipped when nothing happened since the last one
+    private final AtomicInteger mVersion = new AtomicInteger();
+    // When the night the hourly counts belong to is over, the first entry after it starts them again
+    private volatile long mNightEndMillis;
+    // The clock hour of the last entry, a Calendar is only needed once an entry falls outside it
+    private volatile ClockHour mClockHour = new ClockHour(0, 0, 0);
+
+    private volatile Listener mListener;
+
+    private static final class ClockHour {
+        final long mStartMillis;
+        final long mEndMillis;
+        final int mHourOfDay;
+
+        ClockHour(long startMillis, long endMillis, int hourOfDay) {
+            mStartMillis = startMillis;
+            mEndMillis = endMillis;
+            mHourOfDay = hourOfDay;
+        }
+    }
+
+    public interface Listener {
+        // Called on the thread that recorded the entry
+        void onNightStatsChanged(NightStats stats);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void recordEntry(boolean male, int age, long entranceTimeMillis) {
+        if (entranceTimeMillis >= mNightEndMillis) {
+            startNight(entranceTimeMillis);
+        }
+
+        mAgeBandCounts.incrementAndGet(getAgeBand(age));
+        mHourlyCounts.incrementAndGet(getClockHour(entranceTimeMillis).mHourOfDay);
+        if (male) {
+            mMaleCount.incrementAndGet();
+        }
+        // Total last, so a reader that sees the new total also sees the rest of the entry
+        mTotalCount.incrementAndGet();
+        mVersion.incrementAndGet();
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onNightStatsChanged(this);
+        }
+    }
+
+    // The hourly counts are only kept for one night, otherwise every past night's 11pm adds up in the
+    // same slot. Synchronized so two entries that both see the old night don't both clear the counts
+    private synchronized void startNight(long timeMillis) {
+        if (timeMillis < mNightEndMillis) {
+            return;
+        }
+
+        for (int i = 0; i < HOURS_IN_DAY; i++) {
+            mHourlyCounts.set(i, 0);
+        }
+        mNightEndMillis = getNightEnd(timeMillis);
+    }
+
+    static long getNightEnd(long timeMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        if (calendar.get(Calendar.HOUR_OF_DAY) >= NIGHT_END_HOUR) {
+            calendar.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, NIGHT_END_HOUR);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    // Allocates once an hour rather than once an entry. Going through a Calendar at the boundary keeps
+    // time zone and daylight saving changes right
+    private ClockHour getClockHour(long timeMillis) {
+        ClockHour clockHour = mClockHour;
+        if (timeMillis >= clockHour.mStartMillis && timeMillis < clockHour.mEndMillis) {
+            return clockHour;
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long startMillis = calendar.getTimeInMillis();
+        int hourOfDay = calendar.get(Calendar.HOUR_OF_DAY);
+        calendar.add(Calendar.HOUR_OF_DAY, 1);
+
+        clockHour = new ClockHour(startMillis, calendar.getTimeInMillis(), hourOfDay);
+        mClockHour = clockHour;
+        return clockHour;
+    }
+
+    // Only used when counts come back from a checkpoint, before any entries are recorded
+    void restore(int totalCount, int maleCount, int[] ageBandCounts, int[] hourlyCounts,
+                 long nightEndMillis) {
+        mNightEndMillis = nightEndMillis;
+        mTotalCount.set(totalCount);
+        mMaleCount.set(maleCount);
+        for (int i = 0; i < ageBandCounts.length; i++) {
+            mAgeBandCounts.set(i, ageBandCounts[i]);
+        }
+        for (int i = 0; i < hourlyCounts.length; i++) {
+            mHourlyCounts.set(i, hourlyCounts[i]);
+        }
+    }
+
+    public static int getAgeBand(int age) {
+        for (int band = AGE_BAND_LOWER_BOUNDS.length - 1; band > 0; band--) {
+            if (age >= AGE_BAND_LOWER_BOUNDS[band]) {
+                return band;
+            }
+        }
+        return 0;
+    }
+
+    public int getTotalCount() {
+        return mTotalCount.get();
+    }
+
+    public int getMaleCount() {
+        return mMaleCount.get();
+    }
+
+    public int getAgeBandCount(int band) {
+        return mAgeBandCounts.get(band);
+    }
+
+    public int getHourlyCount(int hourOfDay) {
+        return mHourlyCounts.get(hourOfDay);
+    }
+
+    public int getVersion() {
+        return mVersion.get();
+    }
+
+    // 0 until the first entry, the hourly counts are of no night yet
+    public long getNightEndMillis() {
+        return mNightEndMillis;
+    }
+
+    // Entries in the last full hour, falls back to the current hour early on in the night
+    public int getEntriesPerHour() {
+        long now = System.currentTimeMillis();
+        // The counts are of a night that is over, nobody has come in tonight yet
+        if (now >= mNightEndMillis) {
+            return 0;
+        }
+
+        int hour = getClockHour(now).mHourOfDay;
+        int lastHourCount = mHourlyCounts.get((hour + HOURS_IN_DAY - 1) % HOURS_IN_DAY);
+        return lastHourCount > 0 ? lastHourCount : mHourlyCounts.get(hour);
+    }
+
+    public static String getAgeBandLabel(int band) {
+        if (band == AGE_BAND_LOWER_BOUNDS.length - 1) {
+            return AGE_BAND_LOWER_BOUNDS[band] + "+";
+        }
+        return AGE_BAND_LOWER_BOUNDS[band] + "-" + (AGE_BAND_LOWER_BOUNDS[band + 1] - 1);
+    }
+
+    // Text shown to the bouncer between scans
+    public String getSummary() {
+        int totalCount = getTotalCount();
+
+        if (totalCount == 0) {
+            return "People Entered: 0";
+        }
+
+        double malePercentage = ((double) getMaleCount() / totalCount) * 100;
+        StringBuilder summary = new StringBuilder();
+        summary.append("People Entered: ").append(totalCount)
+                .append("\nMale: ").append(String.format("%.2f", malePercentage))
+                .append("%, Female: ").append(String.format("%.2f", 100d - malePercentage)).append('%')
+                .append("\nPer Hour: ").append(getEntriesPerHour())
+                .append("\nAges:");
+
+        for (int band = 0; band < AGE_BAND_LOWER_BOUNDS.length; band++) {
+            summary.append(band == 0 ? " " : ", ").append(getAgeBandLabel(band)).append(": ")
+                    .append(getAgeBandCount(band));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package io.clubhub.idscanner;
+
+import java.io.IOException;
+import java.util.List;
+
+// What ScanUploader sends its batches through, HTTPHelper on the device
+public interface ScanBatchSender {
+    interface Callback {
+        void onSent();
+
+        // statusCode is 0 when nothing came back from the server, a timeout or no connection
+        void onFailed(int statusCode, Exception error);
+    }
+
+    // Returns the size of the body that went over the wire. The callback can come on any thread
+    int send(List<String> records, Callback callback) throws IOException;
+}
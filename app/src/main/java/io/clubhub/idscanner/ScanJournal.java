@@ -0,0 +1,385 @@
+package io.clubhub.idscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only file of scan records waiting to go to the server. Each record is length prefixed and
+// checksummed, so an append only ever writes to the end of the file, and a record torn by a crash is
+// cut off the next time the journal is opened. The uploader reads batches through a cursor and
+// acknowledges them once the server has them, acknowledged records are compacted away
+public class ScanJournal {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Header: magic, version, offset of the first record that hasn't been acknowledged
+    private static final int MAGIC = 0x43485343;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ACKED_OFFSET_POSITION = 8;
+
+    // Record header: payload length, payload checksum, time the record was appended
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    // Appends are forced to disk together, a power cut loses at most this many scans or this many ms
+    private static final int GROUP_SYNC_RECORDS = 8;
+    private static final long GROUP_SYNC_INTERVAL = 2000;
+
+    // Acknowledged records are only copied out once they make up most of a reasonably large file
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final CRC32 mCRC = new CRC32();
+
+    private long mAckedOffset;
+    private long mReadOffset;
+    private long mEndOffset;
+    private int mPendingCount;
+    private int mUnreadCount;
+    // Append time of the first unacknowledged record, kept here so asking for it never touches the disk
+    private long mOldestPendingTime;
+
+    private int mUnsyncedCount;
+    private long mLastSyncTime;
+
+    // A batch of records read off the journal, hand it back to ack() once the server has it
+    public static class Batch {
+        private final List<String> mRecords;
+        private final long mStartOffset;
+        private final long mEndOffset;
+
+        private Batch(List<String> records, long startOffset, long endOffset) {
+            mRecords = Collections.unmodifiableList(records);
+            mStartOffset = startOffset;
+            mEndOffset = endOffset;
+        }
+
+        public List<String> getRecords() {
+            return mRecords;
+        }
+
+        public int size() {
+            return mRecords.size();
+        }
+
+        public boolean isEmpty() {
+            return mRecords.isEmpty();
+        }
+    }
+
+    public ScanJournal(File file) throws IOException {
+        mFile = file;
+        // Left over from a compaction that didn't get as far as the rename, the journal itself is intact
+        getCompactionFile().delete();
+        open();
+        recover();
+    }
+
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    // Works out where the unacknowledged records start and end, cutting off anything torn
+    private void recover() throws IOException {
+        long size = mChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        if (size < HEADER_SIZE || !readFully(header, 0) || header.getInt(0) != MAGIC) {
+            resetFile();
+            return;
+        }
+
+        mAckedOffset = header.getLong(ACKED_OFFSET_POSITION);
+
+        // Truncated after acknowledging everything but before the header was rewritten
+        if (mAckedOffset < HEADER_SIZE || mAckedOffset > size) {
+            resetFile();
+            return;
+        }
+
+        long offset = mAckedOffset;
+        int count = 0;
+
+        while (offset < size) {
+            long next = validateRecord(offset, size);
+            if (next < 0) {
+                break;
+            }
+            offset = next;
+            count++;
+        }
+
+        if (offset < size) {
+            mChannel.truncate(offset);
+            mChannel.force(true);
+        }
+
+        mReadOffset = mAckedOffset;
+        mEndOffset = offset;
+        mPendingCount = count;
+        mUnreadCount = count;
+        mOldestPendingTime = readOldestPendingTime();
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    // Returns the offset just past the record at offset, or -1 if it is incomplete or corrupt
+    private long validateRecord(long offset, long size) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > size || !readRecordHeader(offset)) {
+            return -1;
+        }
+
+        int length = mRecordHeader.getInt(0);
+        if (length < 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length > size) {
+            return -1;
+        }
+
+        byte[] payload = readPayload(offset, length);
+        if (payload == null || getChecksum(payload) != mRecordHeader.getInt(4)) {
+            return -1;
+        }
+
+        return offset + RECORD_HEADER_SIZE + length;
+    }
+
+    private void resetFile() throws IOException {
+        mChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+        writeFully(header, 0);
+        mChannel.force(true);
+
+        mAckedOffset = HEADER_SIZE;
+        mReadOffset = HEADER_SIZE;
+        mEndOffset = HEADER_SIZE;
+        mPendingCount = 0;
+        mUnreadCount = 0;
+        mOldestPendingTime = 0;
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    public synchronized void append(String record) throws IOException {
+        byte[] payload = record.getBytes(UTF_8);
+        if (payload.length > MAX_RECORD_SIZE) {
+            throw new IOException("Record of " + payload.length + " bytes is too large for the journal");
+        }
+
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt(getChecksum(payload)).putLong(now).put(payload).flip();
+        writeFully(buffer, mEndOffset);
+
+        if (mPendingCount == 0) {
+            mOldestPendingTime = now;
+        }
+
+        mEndOffset += buffer.limit();
+        mPendingCount++;
+        mUnreadCount++;
+        mUnsyncedCount++;
+
+        // The write is already safe from the app dying, forcing it only guards against losing power
+        if (mUnsyncedCount >= GROUP_SYNC_RECORDS
+                || System.currentTimeMillis() - mLastSyncTime >= GROUP_SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    // Forces any appends that haven't gone to disk yet, called when the app goes to the background
+    public synchronized void sync() throws IOException {
+        if (mUnsyncedCount > 0) {
+            mChannel.force(false);
+            mUnsyncedCount = 0;
+        }
+        mLastSyncTime = System.currentTimeMillis();
+    }
+
+    // Reads up to maxRecords from the cursor on, the cursor moves past them until they are acked or
+    // the uploader rewinds after a failed upload
+    public synchronized Batch readBatch(int maxRecords) throws IOException {
+        List<String> records = new ArrayList<>(Math.min(maxRecords, mUnreadCount));
+        long startOffset = mReadOffset;
+        long offset = mReadOffset;
+
+        while (records.size() < maxRecords && offset < mEndOffset) {
+            if (!readRecordHeader(offset)) {
+                throw new IOException("Journal ends inside a record at " + offset);
+            }
+
+            int length = mRecordHeader.getInt(0);
+            byte[] payload = readPayload(offset, length);
+            if (payload == null) {
+                throw new IOException("Journal ends inside a record at " + offset);
+            }
+
+            records.add(new String(payload, UTF_8));
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        mReadOffset = offset;
+        mUnreadCount -= records.size();
+        return new Batch(records, startOffset, offset);
+    }
+
+    // Puts the cursor back on the oldest unacknowledged record so it gets read again
+    public synchronized void rewind() {
+        mReadOffset = mAckedOffset;
+        mUnreadCount = mPendingCount;
+    }
+
+    // Batches have to be acknowledged in the order they were read
+    public synchronized void ack(Batch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (batch.mStartOffset != mAckedOffset) {
+            throw new IllegalStateException("Batch at " + batch.mStartOffset
+                    + " acknowledged out of order, expected " + mAckedOffset);
+        }
+
+        // On disk first, if this fails the batch is still pending both here and in the file. Once it is
+        // written the batch is never read again, whatever happens to the tidying up below
+        writeAckedOffset(batch.mEndOffset);
+        mAckedOffset = batch.mEndOffset;
+        mPendingCount -= batch.size();
+
+        if (mReadOffset < mAckedOffset) {
+            mReadOffset = mAckedOffset;
+            mUnreadCount = mPendingCount;
+        }
+        mOldestPendingTime = readOldestPendingTime();
+        mUnsyncedCount = 0;
+        mLastSyncTime = System.currentTimeMillis();
+
+        if (mPendingCount == 0) {
+            // Nothing left to keep, the file just goes back to its header. Truncating before the header
+            // is rewritten means a crash in between can't bring back acknowledged records
+            mChannel.truncate(HEADER_SIZE);
+            mAckedOffset = HEADER_SIZE;
+            mReadOffset = HEADER_SIZE;
+            mEndOffset = HEADER_SIZE;
+            writeAckedOffset(HEADER_SIZE);
+        } else if (mAckedOffset - HEADER_SIZE >= COMPACT_MIN_BYTES
+                && mAckedOffset - HEADER_SIZE > mEndOffset - mAckedOffset) {
+            compact();
+        }
+    }
+
+    // Copies the unacknowledged records into a new file and swaps it in, the rename is atomic so a
+    // crash leaves either the old journal or the compacted one. The old journal's header already has
+    // the acknowledged offset, and the offsets here only move once the compacted copy is in place
+    private void compact() throws IOException {
+        File compactionFile = getCompactionFile();
+        RandomAccessFile compacted = new RandomAccessFile(compactionFile, "rw");
+
+        try {
+            FileChannel channel = compacted.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            long position = mAckedOffset;
+            while (position < mEndOffset) {
+                position += mChannel.transferTo(position, mEndOffset - position, channel);
+            }
+            channel.force(true);
+        } finally {
+            compacted.close();
+        }
+
+        mRandomAccessFile.close();
+        boolean renamed = compactionFile.renameTo(mFile);
+        open();
+        if (!renamed) {
+            compactionFile.delete();
+            throw new IOException("Unable to replace " + mFile + " with its compacted copy");
+        }
+
+        long shift = mAckedOffset - HEADER_SIZE;
+        mAckedOffset -= shift;
+        mReadOffset -= shift;
+        mEndOffset -= shift;
+    }
+
+    // Records appended but not yet acknowledged, including ones the uploader is sending right now
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    // When the oldest unacknowledged record was appended, or 0 if there isn't one
+    public synchronized long getOldestPendingTime() {
+        return mOldestPendingTime;
+    }
+
+    private long readOldestPendingTime() throws IOException {
+        if (mPendingCount == 0 || !readRecordHeader(mAckedOffset)) {
+            return 0;
+        }
+        return mRecordHeader.getLong(8);
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        mRandomAccessFile.close();
+    }
+
+    private void writeAckedOffset(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(offset).flip();
+        writeFully(buffer, ACKED_OFFSET_POSITION);
+        mChannel.force(false);
+    }
+
+    private boolean readRecordHeader(long offset) throws IOException {
+        mRecordHeader.clear();
+        return readFully(mRecordHeader, offset);
+    }
+
+    private byte[] readPayload(long offset, int length) throws IOException {
+        byte[] payload = new byte[length];
+        return readFully(ByteBuffer.wrap(payload), offset + RECORD_HEADER_SIZE) ? payload : null;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private int getChecksum(byte[] payload) {
+        mCRC.reset();
+        mCRC.update(payload, 0, payload.length);
+        return (int) mCRC.getValue();
+    }
+
+    private File getCompactionFile() {
+        return new File(mFile.getPath() + ".compact");
+    }
+}
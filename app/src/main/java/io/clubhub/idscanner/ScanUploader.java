@@ -0,0 +1,317 @@
+package io.clubhub.idscanner;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+
+// Drains the scan journal to the server in batches. A batch goes out once CACHE_PREF_THRESHOLD scans are
+// waiting or BATCH_WINDOW after the first one came in, whichever is sooner. Only one batch is in the air
+// at a time, it is acknowledged in the journal once the server has it and read again after a back off
+// if it fails, unless the server rejected it outright. Everything except the network call itself runs on
+// the uploader's own background thread. UploadScheduler holds uploads back while offline or while a scan
+// is being decoded
+public class ScanUploader {
+    // Where the uploader's work runs, a background HandlerThread on the device. Tests run it by hand
+    interface TaskRunner {
+        void post(Runnable task);
+
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+
+        void quit();
+    }
+
+    private static final String TAG = "ScanUploader";
+
+    private static final int BATCH_THRESHOLD = FileManager.ClubHubSharedPreferences.CACHE_PREF_THRESHOLD;
+    // Backlogs left from being offline go up in bigger batches
+    private static final int MAX_BATCH_RECORDS = 100;
+    private static final long BATCH_WINDOW = 2 * 60 * 1000;
+
+    private static final long INITIAL_RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+    // Caps the compressed bytes sent per window, so a backlog going up after being offline trickles out
+    // instead of taking the whole connection
+    private static final int MAX_BYTES_PER_WINDOW = 32 * 1024;
+    private static final long BYTE_WINDOW = 10000;
+
+    private final ScanJournal mScanJournal;
+    private final ScanBatchSender mSender;
+    private final TaskRunner mRunner;
+    private final Random mRandom = new Random();
+    private final long mInitialRetryDelay;
+
+    // Only touched on the runner's thread
+    private ScanJournal.Batch mBatchInFlight;
+    private boolean mFlushScheduled;
+    private int mFailedAttempts;
+    private long mRetryTime;
+    private boolean mOnline = true;
+    private boolean mScanInProgress;
+    private long mByteWindowStart;
+    private int mBytesInWindow;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            sendNextBatch();
+        }
+    };
+
+    public ScanUploader(ScanJournal scanJournal, ScanBatchSender sender) {
+        this(scanJournal, sender, INITIAL_RETRY_DELAY);
+    }
+
+    // A shorter first back off keeps tests against a stand-in server quick
+    ScanUploader(ScanJournal scanJournal, ScanBatchSender sender, long initialRetryDelay) {
+        this(scanJournal, sender, new HandlerTaskRunner(), initialRetryDelay);
+    }
+
+    ScanUploader(ScanJournal scanJournal, ScanBatchSender sender, TaskRunner runner, long initialRetryDelay) {
+        mScanJournal = scanJournal;
+        mSender = sender;
+        mRunner = runner;
+        mInitialRetryDelay = initialRetryDelay;
+
+        // Scans left over from last time go up straight away
+        if (mScanJournal.getPendingCount() > 0) {
+            mRunner.post(mFlush);
+        }
+    }
+
+    // Safe to call from any thread, right after a scan is appended to the journal
+    public void onScanStored() {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                flushIfPending();
+            }
+        });
+    }
+
+    // Sends whatever is waiting without waiting for the batch window, unless backing off
+    public void flush() {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                flushAt(0);
+            }
+        });
+    }
+
+    // Offline nothing is sent, the scans wait in the journal and go up in order once back online. A new
+    // connection gets a fresh attempt rather than waiting out the back off from the old one
+    public void setOnline(final boolean online) {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                if (online == mOnline) {
+                    return;
+                }
+
+                mOnline = online;
+                if (online) {
+                    mFailedAttempts = 0;
+                    mRetryTime = 0;
+                    flushIfPending();
+                }
+            }
+        });
+    }
+
+    // Keeps the network and this thread out of the way of a scan, the batch in the air when the scan starts
+    // still finishes
+    public void setScanInProgress(final boolean scanInProgress) {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                mScanInProgress = scanInProgress;
+                if (!scanInProgress) {
+                    flushIfPending();
+                }
+            }
+        });
+    }
+
+    // The batch window runs from when the oldest waiting scan was stored, not from when this was called
+    private void flushIfPending() {
+        if (mScanJournal.getPendingCount() >= BATCH_THRESHOLD) {
+            flushAt(0);
+        } else if (mScanJournal.getPendingCount() > 0) {
+            long delay = mScanJournal.getOldestPendingTime() + BATCH_WINDOW - System.currentTimeMillis();
+            flushAt(Math.max(delay, 0));
+        }
+    }
+
+    private void flushAt(long delay) {
+        if (mBatchInFlight != null || !mOnline || mScanInProgress) {
+            // The next batch is looked at once this one is back, or once uploads are let through again
+            return;
+        }
+
+        // A failing server isn't tried again before its back off is up
+        long retryDelay = mRetryTime - System.currentTimeMillis();
+        if (retryDelay > delay) {
+            delay = retryDelay;
+        } else if (mFlushScheduled && delay > 0) {
+            // Already on its way within the window
+            return;
+        }
+
+        mRunner.removeCallbacks(mFlush);
+        mFlushScheduled = true;
+        mRunner.postDelayed(mFlush, Math.max(delay, 0));
+    }
+
+    private void sendNextBatch() {
+        if (mBatchInFlight != null || !mOnline || mScanInProgress) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - mByteWindowStart >= BYTE_WINDOW) {
+            mByteWindowStart = now;
+            mBytesInWindow = 0;
+        } else if (mBytesInWindow >= MAX_BYTES_PER_WINDOW) {
+            flushAt(mByteWindowStart + BYTE_WINDOW - now);
+            return;
+        }
+
+        try {
+            final ScanJournal.Batch batch = mScanJournal.readBatch(MAX_BATCH_RECORDS);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            mBatchInFlight = batch;
+            mBytesInWindow += mSender.send(batch.getRecords(), new ScanBatchSender.Callback() {
+                @Override
+                public void onSent() {
+                    onBatchSent(batch);
+                }
+
+                @Override
+                public void onFailed(int statusCode, Exception error) {
+                    onBatchFailed(batch, statusCode, error);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to put together a batch of scans", e);
+            backOff();
+        }
+    }
+
+    // The sender answers on its own thread, the journal work is handed back to the uploader thread
+    private void onBatchSent(final ScanJournal.Batch batch) {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                acknowledge(batch);
+            }
+        });
+    }
+
+    private void acknowledge(ScanJournal.Batch batch) {
+        try {
+            mScanJournal.ack(batch);
+        } catch (IOException e) {
+            // The batch stays in the journal and goes up again after the back off, the server sees it twice
+            Log.e(TAG, "Unable to acknowledge sent scans", e);
+            backOff();
+            return;
+        }
+
+        mBatchInFlight = null;
+        mFailedAttempts = 0;
+        mRetryTime = 0;
+        flushIfPending();
+    }
+
+    private void onBatchFailed(final ScanJournal.Batch batch, final int statusCode, final Exception error) {
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isRetryable(statusCode)) {
+                    Log.w(TAG, "Unable to send " + batch.size() + " scans, attempt " + (mFailedAttempts + 1),
+                            error);
+                    backOff();
+                    return;
+                }
+
+                // Sending the same batch again gets the same answer, and everything behind it would wait
+                // forever. It's dropped so the rest of the night's scans still go up
+                Log.e(TAG, "Server rejected " + batch.size() + " scans with " + statusCode + ", dropping them",
+                        error);
+                acknowledge(batch);
+            }
+        });
+    }
+
+    // No answer at all, a server error or being told to slow down are worth another try, any other
+    // client error means the server won't take the batch
+    static boolean isRetryable(int statusCode) {
+        return statusCode < 400 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    // The batch goes back to the journal cursor and is read again once the back off is up
+    private void backOff() {
+        mBatchInFlight = null;
+        mScanJournal.rewind();
+
+        long delay = getRetryDelay(++mFailedAttempts);
+        mRetryTime = System.currentTimeMillis() + delay;
+        flushAt(delay);
+    }
+
+    // Doubles with every failure up to MAX_RETRY_DELAY, with some jitter so a room full of scanners
+    // coming back online don't all hit the server at once
+    private long getRetryDelay(int failedAttempts) {
+        long delay = mInitialRetryDelay << Math.min(failedAttempts - 1, 16);
+        delay = Math.min(delay, MAX_RETRY_DELAY);
+        return delay - (long) (mRandom.nextDouble() * delay / 4);
+    }
+
+    // Whatever is still waiting stays in the journal for next time
+    public void release() {
+        mRunner.quit();
+    }
+
+    private static class HandlerTaskRunner implements TaskRunner {
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+
+        HandlerTaskRunner() {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        @Override
+        public void post(Runnable task) {
+            mHandler.post(task);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+
+        @Override
+        public void quit() {
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quitSafely();
+        }
+    }
+}
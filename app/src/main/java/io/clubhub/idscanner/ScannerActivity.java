@@ -4,8 +4,8 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.SurfaceHolder;
@@ -17,10 +17,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import io.clubhub.idscanner.imageutils.ScanTimings;
 import io.clubhub.idscanner.imageutils.ocr.OCRHelper;
 import io.clubhub.idscanner.camera.CameraManager;
 import io.clubhub.idscanner.imageutils.pdf417.PDF417Helper;
 
+import org.json.JSONException;
 import org.opencv.android.OpenCVLoader;
 
 public class ScannerActivity extends Activity implements SurfaceHolder.Callback {
@@ -39,16 +41,33 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
     // TODO: Make this true only for when permission is given by server once a request to start recording is made
     private boolean mIsRecording = true;
 
-    private SharedPreferences.OnSharedPreferenceChangeListener mSharedPrefChangeListener =
-            new SharedPreferences.OnSharedPreferenceChangeListener() {
-                @Override
-                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-                    // Need to update UI for bouncer based on change in count/male
-                    if (key.equals(FileManager.ClubHubSharedPreferences.TOTAL_PEOPLE_COUNT_KEY)) {
-                        updateStatsView();
-                    }
-                }
-            };
+    // How often the night's counts are written to disk while scanning
+    private static final int NIGHT_STATS_CHECKPOINT_INTERVAL = 60000;
+
+    private Handler mHandler = new Handler();
+
+    private NightStats.Listener mNightStatsListener = new NightStats.Listener() {
+        @Override
+        public void onNightStatsChanged(NightStats stats) {
+            // Recorded on the decode thread, need to update UI for bouncer based on change in count/male
+            runOnUiThread(mUpdateStatsView);
+        }
+    };
+
+    private Runnable mUpdateStatsView = new Runnable() {
+        @Override
+        public void run() {
+            updateStatsView();
+        }
+    };
+
+    private Runnable mNightStatsCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            mFileManager.checkpointNightStats();
+            mHandler.postDelayed(this, NIGHT_STATS_CHECKPOINT_INTERVAL);
+        }
+    };
 
     static {
         if (!OpenCVLoader.initDebug()) {
@@ -79,7 +98,8 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
     @Override
     protected void onResume() {
         super.onResume();
-        mFileManager.getSharedPrefs().registerChangeListener(mSharedPrefChangeListener);
+        mFileManager.getNightStats().setListener(mNightStatsListener);
+        mHandler.postDelayed(mNightStatsCheckpoint, NIGHT_STATS_CHECKPOINT_INTERVAL);
 
         if (mIsRecording && !mBarcodeScannerHelper.currentlyScanning()) {
             updateStatsView();
@@ -96,7 +116,10 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
     @Override
     protected void onPause() {
         mCameraManager.deInitCamera();
-        mFileManager.getSharedPrefs().unregisterChangeListener(mSharedPrefChangeListener);
+        mFileManager.getNightStats().setListener(null);
+        mHandler.removeCallbacks(mNightStatsCheckpoint);
+        mFileManager.checkpointNightStats();
+        mFileManager.syncScanJournal();
         super.onPause();
 
     }
@@ -104,6 +127,8 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
     @Override
     protected void onDestroy() {
         //mOCRHelper.deInitOCRLibrary();
+        mBarcodeScannerHelper.release();
+        mFileManager.close();
         super.onDestroy();
     }
 
@@ -192,6 +217,42 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
 
         mDecodeSpinner = findViewById(R.id.decode_spinner);
         mStatsView = (TextView) findViewById(R.id.stats_textview);
+        // Hidden debug screen with the scan timings, long press the stats
+        mStatsView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                showScanTimingsDialog();
+                return true;
+            }
+        });
+    }
+
+    private void showScanTimingsDialog() {
+        String timings;
+        try {
+            timings = ScanTimings.toJSON().toString(2);
+        } catch (JSONException e) {
+            timings = ScanTimings.toJSON().toString();
+        }
+
+        // Lets the picture burst be tried against preview frames on the same phone, from the next scan
+        final boolean previewFrames = mBarcodeScannerHelper.isDecodingPreviewFrames();
+        new AlertDialog.Builder(this)
+                .setTitle("Scan Timings (ms)")
+                .setMessage("Decoding " + (previewFrames ? "preview frames" : "picture bursts") + "\n\n" + timings)
+                .setPositiveButton("Ok", null)
+                .setNegativeButton("Reset", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        ScanTimings.reset();
+                    }
+                })
+                .setNeutralButton(previewFrames ? "Use Pictures" : "Use Preview", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mBarcodeScannerHelper.setDecodePreviewFrames(!previewFrames);
+                    }
+                }).create().show();
     }
 
     private void startCamera(SurfaceHolder holder, boolean turnLightOn){
@@ -204,7 +265,15 @@ public class ScannerActivity extends Activity implements SurfaceHolder.Callback
     }
 
     private void updateStatsView() {
-        mStatsView.setText(mFileManager.getSharedPrefs().getCurrentNightStats());
+        String stats = mFileManager.getNightStats().getSummary();
+        UploadScheduler uploadScheduler = mFileManager.getUploadScheduler();
+
+        // Lets the manager see when scans have been stuck on the phone for a while
+        if (uploadScheduler != null && uploadScheduler.getQueueDepth() > 0) {
+            stats += "\nWaiting to Upload: " + uploadScheduler.getQueueDepth() + " (oldest "
+                    + uploadScheduler.getOldestUnsentAge() / 60000 + " min)";
+        }
+        mStatsView.setText(stats);
     }
 
     public void reportIDValidity(boolean valid) {
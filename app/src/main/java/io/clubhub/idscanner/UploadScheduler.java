@@ -0,0 +1,74 @@
+package io.clubhub.idscanner;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+// Decides when the ScanUploader may use the network. Scans are always written to the journal first, so
+// while offline they just build up there and get flushed in order when connectivity comes back. Uploads
+// also sit out every scan, so the decode threads have the CPU and the network to themselves
+public class UploadScheduler {
+    private Context mContext;
+    private ScanJournal mScanJournal;
+    private ScanUploader mScanUploader;
+    private boolean mWatchingConnectivity;
+
+    private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateConnectivity();
+        }
+    };
+
+    public UploadScheduler(Context context, ScanJournal scanJournal, ScanUploader scanUploader) {
+        mContext = context.getApplicationContext();
+        mScanJournal = scanJournal;
+        mScanUploader = scanUploader;
+    }
+
+    public void start() {
+        if (!mWatchingConnectivity) {
+            mWatchingConnectivity = true;
+            // The sticky broadcast comes straight back, the current state is also checked here in case
+            mContext.registerReceiver(mConnectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            updateConnectivity();
+        }
+    }
+
+    public void stop() {
+        if (mWatchingConnectivity) {
+            mWatchingConnectivity = false;
+            mContext.unregisterReceiver(mConnectivityReceiver);
+        }
+    }
+
+    private void updateConnectivity() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        mScanUploader.setOnline(networkInfo != null && networkInfo.isConnected());
+    }
+
+    public void onScanStarted() {
+        mScanUploader.setScanInProgress(true);
+    }
+
+    public void onScanFinished() {
+        mScanUploader.setScanInProgress(false);
+    }
+
+    // Scans that haven't been acknowledged by the server yet
+    public int getQueueDepth() {
+        return mScanJournal.getPendingCount();
+    }
+
+    // How long the oldest scan has been waiting to go up in ms, 0 if there is nothing waiting
+    public long getOldestUnsentAge() {
+        long oldestPendingTime = mScanJournal.getOldestPendingTime();
+        return oldestPendingTime == 0 ? 0 : System.currentTimeMillis() - oldestPendingTime;
+    }
+}
@@ -1,6 +1,7 @@
 package io.clubhub.idscanner.camera;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.Camera;
@@ -21,11 +22,14 @@ import java.util.List;
  */
 public class CameraConfigManager {
     private static final int MIN_PREVIEW_PIXELS = 470 * 320;
-    private static final int MAX_PREVIEW_PIXELS = 800 * 600;
+    // Preview frames are decoded directly, so allow up to 1080p to keep enough rows on the barcode
+    private static final int MAX_PREVIEW_PIXELS = 1920 * 1080;
 
     private Point mScreenRes;
     private Point mCameraRes;
     private int mCameraOrientation;
+    // Clockwise degrees the sensor image has to turn to look upright on screen
+    private int mImageRotation;
 
     void initFromCameraParams(Camera camera, Context context) {
         Camera.Parameters params = camera.getParameters();
@@ -49,8 +53,8 @@ public class CameraConfigManager {
             params.setVideoStabilization(true);
         }
 
-        // Fix for messed up camera orientation on new phones,
-        // Needs testing on other phones other than Nexus 5X
+        // Sensors aren't all mounted the same way (the Nexus 5X one is upside down), so the preview
+        // and the captured images are turned based on the reported orientation
         setCorrectDisplayOrientation(windowManager,camera);
 
         camera.setParameters(params);
@@ -82,6 +86,7 @@ public class CameraConfigManager {
             result = (mCameraOrientation - degrees + 360) % 360;
         }
         
+        mImageRotation = result;
         camera.setDisplayOrientation(result);
     }
 
@@ -89,6 +94,10 @@ public class CameraConfigManager {
         return mCameraOrientation;
     }
 
+    public int getImageRotation() {
+        return mImageRotation;
+    }
+
     void setCameraDefaultParams(Camera camera) {
         Camera.Parameters params = camera.getParameters();
         String focusMode = findSettableValue(params.getSupportedFocusModes(),
@@ -104,6 +113,7 @@ public class CameraConfigManager {
 
         params.set("orientation", "landscape");
         params.setPreviewSize(mCameraRes.x, mCameraRes.y);
+        params.setPreviewFormat(ImageFormat.NV21);
         camera.setParameters(params);
     }
 
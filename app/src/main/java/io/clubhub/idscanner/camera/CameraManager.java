@@ -1,6 +1,7 @@
 package io.clubhub.idscanner.camera;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.Camera;
@@ -25,6 +26,7 @@ public class CameraManager {
     private boolean mCameraIsInitialized;
     private boolean mIsPreviewing;
     private Rect mFramingRect;
+    private PreviewFrameRing mFrameRing;
 
     public CameraManager() {
         mCameraConfig = new CameraConfigManager();
@@ -32,6 +34,8 @@ public class CameraManager {
 
     public int getCameraOrienation() { return mCameraConfig.getCameraOrientation(); }
 
+    public int getImageRotation() { return mCameraConfig.getImageRotation(); }
+
     public synchronized void initCamera(SurfaceHolder holder, boolean turnLightOn,
                                         Context context) throws IOException {
         if (mCamera != null) {
@@ -113,6 +117,93 @@ public class CameraManager {
         }
     }
 
+    // Streams NV21 preview frames into the callback. Frames land in a fixed ring of buffers, so a frame
+    // has to go through acceptPreviewFrame and later releasePreviewFrame before its buffer is reused
+    public synchronized void startPreviewFrames(Camera.PreviewCallback callback, int decodeWorkerCount) {
+        if (mCamera == null) {
+            return;
+        }
+
+        Point previewSize = mCameraConfig.getCameraRes();
+        int bufferSize = previewSize.x * previewSize.y
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+
+        if (mFrameRing == null || !mFrameRing.fits(bufferSize, decodeWorkerCount)) {
+            mFrameRing = new PreviewFrameRing(bufferSize, decodeWorkerCount);
+        }
+
+        for (byte[] buffer : mFrameRing.getIdleBuffers()) {
+            mCamera.addCallbackBuffer(buffer);
+        }
+        mCamera.setPreviewCallbackWithBuffer(callback);
+    }
+
+    // Returns true if the frame should be decoded, otherwise it was dropped and its buffer recycled
+    public synchronized boolean acceptPreviewFrame(byte[] frame) {
+        if (mFrameRing == null) {
+            return false;
+        }
+
+        if (mFrameRing.acquireForDecode(frame)) {
+            return true;
+        }
+
+        if (mCamera != null) {
+            mCamera.addCallbackBuffer(frame);
+        }
+        return false;
+    }
+
+    public synchronized void releasePreviewFrame(byte[] frame, boolean reuse) {
+        if (mFrameRing == null) {
+            return;
+        }
+
+        mFrameRing.release(frame);
+
+        if (reuse && mCamera != null) {
+            mCamera.addCallbackBuffer(frame);
+        }
+    }
+
+    // For an accepted frame that won't be decoded after all, its buffer goes straight back to the camera
+    public synchronized void rejectPreviewFrame(byte[] frame) {
+        if (mFrameRing == null) {
+            return;
+        }
+
+        mFrameRing.reject(frame);
+
+        if (mCamera != null) {
+            mCamera.addCallbackBuffer(frame);
+        }
+    }
+
+    // For an accepted frame the decode executor turned away, counted as dropped like a frame that came
+    // in while every worker was busy
+    public synchronized void dropPreviewFrame(byte[] frame, boolean reuse) {
+        if (mFrameRing == null) {
+            return;
+        }
+
+        mFrameRing.drop(frame);
+
+        if (reuse && mCamera != null) {
+            mCamera.addCallbackBuffer(frame);
+        }
+    }
+
+    public synchronized void stopPreviewFrames() {
+        if (mCamera != null) {
+            // Also drops any buffers that were queued on the camera
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+    }
+
+    public synchronized PreviewFrameRing getPreviewFrameRing() {
+        return mFrameRing;
+    }
+
     public void restartCamera(){
         if (mCamera != null) {
             mIsPreviewing = true;
@@ -0,0 +1,117 @@
+package io.clubhub.idscanner.camera;
+
+// Fixed set of preview callback buffers that get reused for every scan. Holds one buffer more than
+// there are decode workers, so the camera always has something to fill, and frames that come in
+// while every worker is busy get dropped instead of queued
+public class PreviewFrameRing {
+    private final byte[][] mBuffers;
+    private final boolean[] mInDecode;
+    private final int mMaxFramesInDecode;
+    private int mFramesInDecode;
+
+    private long mFramesCaptured;
+    private long mFramesDropped;
+    private long mFramesRejected;
+    private long mFramesDecoded;
+
+    PreviewFrameRing(int bufferSize, int decodeWorkerCount) {
+        mMaxFramesInDecode = decodeWorkerCount;
+        mBuffers = new byte[decodeWorkerCount + 1][bufferSize];
+        mInDecode = new boolean[mBuffers.length];
+    }
+
+    boolean fits(int bufferSize, int decodeWorkerCount) {
+        return mBuffers[0].length == bufferSize && mMaxFramesInDecode == decodeWorkerCount;
+    }
+
+    // Buffers that are not held by a decode worker, ie. the ones that can go back to the camera
+    synchronized byte[][] getIdleBuffers() {
+        byte[][] idle = new byte[mBuffers.length - mFramesInDecode][];
+        int count = 0;
+
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (!mInDecode[i]) {
+                idle[count++] = mBuffers[i];
+            }
+        }
+        return idle;
+    }
+
+    // Returns false when the frame should be dropped because every decode worker is busy
+    synchronized boolean acquireForDecode(byte[] frame) {
+        mFramesCaptured++;
+        int index = indexOf(frame);
+
+        if (index < 0 || mInDecode[index] || mFramesInDecode >= mMaxFramesInDecode) {
+            mFramesDropped++;
+            return false;
+        }
+
+        mInDecode[index] = true;
+        mFramesInDecode++;
+        return true;
+    }
+
+    synchronized void release(byte[] frame) {
+        int index = indexOf(frame);
+
+        if (index >= 0 && mInDecode[index]) {
+            mInDecode[index] = false;
+            mFramesInDecode--;
+            mFramesDecoded++;
+        }
+    }
+
+    // Hands back a frame that was acquired but turned out not to be worth decoding
+    synchronized void reject(byte[] frame) {
+        int index = indexOf(frame);
+
+        if (index >= 0 && mInDecode[index]) {
+            mInDecode[index] = false;
+            mFramesInDecode--;
+            mFramesRejected++;
+        }
+    }
+
+    // Hands back a frame that was acquired but never reached a decode worker
+    synchronized void drop(byte[] frame) {
+        int index = indexOf(frame);
+
+        if (index >= 0 && mInDecode[index]) {
+            mInDecode[index] = false;
+            mFramesInDecode--;
+            mFramesDropped++;
+        }
+    }
+
+    private int indexOf(byte[] frame) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == frame) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long getFramesCaptured() {
+        return mFramesCaptured;
+    }
+
+    public synchronized long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public synchronized long getFramesRejected() {
+        return mFramesRejected;
+    }
+
+    public synchronized long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Frames captured: " + mFramesCaptured + ", dropped: " + mFramesDropped
+                + ", rejected: " + mFramesRejected + ", decoded: " + mFramesDecoded;
+    }
+}
@@ -0,0 +1,29 @@
+package io.clubhub.idscanner.imageutils;
+
+import java.util.concurrent.CancellationException;
+
+// Shared by every capture and decode of one scan batch. Once the batch has a result (or is torn
+// down), each stage that checks the token bails out instead of running to completion
+public class DecodeBatchToken {
+    private volatile boolean mFinished;
+
+    // Returns true only for the call that actually finished the batch
+    public synchronized boolean finish() {
+        if (mFinished) {
+            return false;
+        }
+        mFinished = true;
+        return true;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    // Called between pipeline stages, unwinds the current decode if the batch is already done
+    public void checkpoint() {
+        if (mFinished) {
+            throw new CancellationException("Decode batch already finished");
+        }
+    }
+}
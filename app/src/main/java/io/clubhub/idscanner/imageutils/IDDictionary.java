@@ -1,7 +1,11 @@
 package io.clubhub.idscanner.imageutils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import io.clubhub.idscanner.pipeline.IDRecord;
+import io.clubhub.idscanner.pipeline.JurisdictionProfile;
+import io.clubhub.idscanner.pipeline.JurisdictionTable;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -21,7 +25,7 @@ public class IDDictionary {
     public static final String ENTRANCE_TIME_KEY = "ET";
     public static final String ID_KEY = "ID";
 
-    // In order of what comes first ON driver's license, assuming we only scan ON drivers license for now
+    // What ON driver's licenses use, the built in profile for when the profile file can't be read
     public static final String[] ID_EXPIRY_TRIGGERS = {"DBA"};
     public static final String[] LAST_NAME_TRIGGERS = {"DCS"};
     public static final String[] FIRST_NAME_TRIGGERS = {"DCT"};
@@ -37,26 +41,36 @@ public class IDDictionary {
     // Assume ON drinking age for now
     public static final int ACTIVATED_DRINKING_AGE = 19;
 
-    private static final Map<String, ArrayList<String>> BARCODE_ID_DICTIONARY;
-
-    static {
-        Map<String, ArrayList<String>> idDict = new LinkedHashMap<>();
+    private static volatile JurisdictionTable sJurisdictions = getBuiltInJurisdictions();
 
-        idDict.put(ID_EXPIRY_DATE_KEY, getAttributeKeys(ID_EXPIRY_TRIGGERS));
-        idDict.put(LAST_NAME_KEY, getAttributeKeys(LAST_NAME_TRIGGERS));
-        idDict.put(FIRST_NAME_KEY, getAttributeKeys(FIRST_NAME_TRIGGERS));
-        idDict.put(BIRTH_DATE_KEY, getAttributeKeys(BIRTH_DAY_TRIGGERS));
-        idDict.put(GENDER_KEY, getAttributeKeys(GENDER_TRIGGERS));
-        idDict.put(ID_KEY, getAttributeKeys(ID_TRIGGERS));
+    // Replaces the built in Ontario profile with every profile in the bundled file, called once
+    // at startup. Parsing cost afterwards doesn't depend on how many profiles there are
+    public static void loadJurisdictions(InputStream profileFile) throws IOException {
+        sJurisdictions = JurisdictionTable.parse(profileFile);
+    }
 
-        BARCODE_ID_DICTIONARY = Collections.unmodifiableMap(idDict);
+    public static JurisdictionTable getJurisdictions() {
+        return sJurisdictions;
     }
 
-    private static ArrayList<String> getAttributeKeys(String [] triggerArray){
-        return new ArrayList<>(Arrays.asList(triggerArray));
+    private static JurisdictionTable getBuiltInJurisdictions() {
+        Map<String, Integer> elementFields = new LinkedHashMap<>();
+
+        putTriggers(elementFields, ID_EXPIRY_TRIGGERS, IDRecord.ID_EXPIRY_DATE);
+        putTriggers(elementFields, LAST_NAME_TRIGGERS, IDRecord.LAST_NAME);
+        putTriggers(elementFields, FIRST_NAME_TRIGGERS, IDRecord.FIRST_NAME);
+        putTriggers(elementFields, BIRTH_DAY_TRIGGERS, IDRecord.BIRTH_DATE);
+        putTriggers(elementFields, GENDER_TRIGGERS, IDRecord.GENDER);
+        putTriggers(elementFields, ID_TRIGGERS, IDRecord.ID);
+
+        JurisdictionProfile ontario = new JurisdictionProfile("ontario", ON_DRIVERS_LICENSE_DATE_FORMAT,
+                elementFields, true);
+        return new JurisdictionTable(Collections.singletonList(ontario), new int[0], new int[0], ontario);
     }
 
-    public static Map<String, ArrayList<String>> getBarcodeIdDictionary() {
-        return BARCODE_ID_DICTIONARY;
+    private static void putTriggers(Map<String, Integer> elementFields, String [] triggerArray, int field) {
+        for (String trigger : triggerArray) {
+            elementFields.put(trigger, field);
+        }
     }
 }
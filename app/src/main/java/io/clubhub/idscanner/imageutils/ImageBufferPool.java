@@ -0,0 +1,218 @@
+package io.clubhub.idscanner.imageutils;
+
+import android.graphics.Bitmap;
+
+import io.clubhub.idscanner.pipeline.MatAllocator;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reusable mats, bitmaps and byte arrays for a scanning session, keyed by size and type. Pre-processing takes its
+// intermediates from here and hands them back when done, so native memory stays flat through the
+// night instead of creeping up until finalizers get around to freeing the mats
+public class ImageBufferPool implements MatAllocator {
+    // Frames and crops come in a handful of sizes, anything over these limits is freed right away
+    private static final int MAX_IDLE_PER_SIZE = 4;
+    private static final int MAX_IDLE_TOTAL = 24;
+
+    private final Map<Long, ArrayDeque<Mat>> mIdleMats = new HashMap<>();
+    private final Map<Long, ArrayDeque<Bitmap>> mIdleBitmaps = new HashMap<>();
+    private final Map<Integer, ArrayDeque<byte[]>> mIdleByteArrays = new HashMap<>();
+    private int mIdleCount;
+
+    private int mMatsInUse;
+    private int mMatsInUseHighWater;
+    private int mBitmapsInUse;
+    private int mBitmapsInUseHighWater;
+    private long mBytesHeld;
+    private long mBytesHeldHighWater;
+
+    @Override
+    public synchronized Mat acquireMat(int rows, int cols, int type) {
+        ArrayDeque<Mat> idle = mIdleMats.get(getMatKey(rows, cols, type));
+        Mat mat = idle == null ? null : idle.poll();
+
+        if (mat == null) {
+            mat = new Mat(rows, cols, type);
+            addBytesHeld(getByteCount(mat));
+        } else {
+            mIdleCount--;
+        }
+
+        mMatsInUse++;
+        mMatsInUseHighWater = Math.max(mMatsInUseHighWater, mMatsInUse);
+        return mat;
+    }
+
+    // Only mats from acquireMat should come back here, submat views share memory with their parent
+    @Override
+    public synchronized void releaseMat(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+
+        mMatsInUse--;
+        long key = getMatKey(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> idle = mIdleMats.get(key);
+
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleMats.put(key, idle);
+        }
+
+        if (idle.size() < MAX_IDLE_PER_SIZE && mIdleCount < MAX_IDLE_TOTAL) {
+            idle.push(mat);
+            mIdleCount++;
+        } else {
+            addBytesHeld(-getByteCount(mat));
+            mat.release();
+        }
+    }
+
+    public synchronized Bitmap acquireBitmap(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> idle = mIdleBitmaps.get(getBitmapKey(width, height, config));
+        Bitmap bitmap = idle == null ? null : idle.poll();
+
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+            addBytesHeld(bitmap.getByteCount());
+        } else {
+            mIdleCount--;
+        }
+
+        mBitmapsInUse++;
+        mBitmapsInUseHighWater = Math.max(mBitmapsInUseHighWater, mBitmapsInUse);
+        return bitmap;
+    }
+
+    // For a bitmap created outside the pool that should go back to it on release like an acquired one
+    public synchronized void adoptBitmap(Bitmap bitmap) {
+        addBytesHeld(bitmap.getByteCount());
+        mBitmapsInUse++;
+        mBitmapsInUseHighWater = Math.max(mBitmapsInUseHighWater, mBitmapsInUse);
+    }
+
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        mBitmapsInUse--;
+        long key = getBitmapKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> idle = mIdleBitmaps.get(key);
+
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleBitmaps.put(key, idle);
+        }
+
+        if (!bitmap.isRecycled() && idle.size() < MAX_IDLE_PER_SIZE && mIdleCount < MAX_IDLE_TOTAL) {
+            idle.push(bitmap);
+            mIdleCount++;
+        } else {
+            addBytesHeld(-bitmap.getByteCount());
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public synchronized byte[] acquireBytes(int length) {
+        ArrayDeque<byte[]> idle = mIdleByteArrays.get(length);
+        byte[] bytes = idle == null ? null : idle.poll();
+
+        if (bytes == null) {
+            bytes = new byte[length];
+            addBytesHeld(length);
+        } else {
+            mIdleCount--;
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void releaseBytes(byte[] bytes) {
+        if (bytes == null) {
+            return;
+        }
+
+        ArrayDeque<byte[]> idle = mIdleByteArrays.get(bytes.length);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleByteArrays.put(bytes.length, idle);
+        }
+
+        if (idle.size() < MAX_IDLE_PER_SIZE && mIdleCount < MAX_IDLE_TOTAL) {
+            idle.push(bytes);
+            mIdleCount++;
+        } else {
+            addBytesHeld(-bytes.length);
+        }
+    }
+
+    // Frees everything that is sitting idle, called when the scanning session ends
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> idle : mIdleMats.values()) {
+            for (Mat mat : idle) {
+                addBytesHeld(-getByteCount(mat));
+                mat.release();
+            }
+        }
+
+        for (ArrayDeque<Bitmap> idle : mIdleBitmaps.values()) {
+            for (Bitmap bitmap : idle) {
+                addBytesHeld(-bitmap.getByteCount());
+                bitmap.recycle();
+            }
+        }
+
+        for (ArrayDeque<byte[]> idle : mIdleByteArrays.values()) {
+            for (byte[] bytes : idle) {
+                addBytesHeld(-bytes.length);
+            }
+        }
+
+        mIdleMats.clear();
+        mIdleBitmaps.clear();
+        mIdleByteArrays.clear();
+        mIdleCount = 0;
+    }
+
+    public synchronized int getMatsInUseHighWater() {
+        return mMatsInUseHighWater;
+    }
+
+    public synchronized int getBitmapsInUseHighWater() {
+        return mBitmapsInUseHighWater;
+    }
+
+    public synchronized long getBytesHeldHighWater() {
+        return mBytesHeldHighWater;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Mats in use: " + mMatsInUse + " (high water " + mMatsInUseHighWater + "), bitmaps in use: "
+                + mBitmapsInUse + " (high water " + mBitmapsInUseHighWater + "), bytes held: "
+                + mBytesHeld + " (high water " + mBytesHeldHighWater + ")";
+    }
+
+    private void addBytesHeld(long bytes) {
+        mBytesHeld += bytes;
+        mBytesHeldHighWater = Math.max(mBytesHeldHighWater, mBytesHeld);
+    }
+
+    private static long getByteCount(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    private static long getMatKey(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    private static long getBitmapKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 40) | ((long) height << 16) | (config == null ? 0xFFFF : config.ordinal());
+    }
+}
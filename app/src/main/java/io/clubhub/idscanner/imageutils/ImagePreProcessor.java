@@ -1,15 +1,15 @@
 package io.clubhub.idscanner.imageutils;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
-import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.os.Build;
 import android.util.Log;
 
-import io.clubhub.idscanner.FileManager;
+import io.clubhub.idscanner.DebugImageWriter;
+import io.clubhub.idscanner.pipeline.NV21LuminanceSource;
+import io.clubhub.idscanner.pipeline.PDF417Localiser;
+import io.clubhub.idscanner.pipeline.TiledAdaptiveThreshold;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
@@ -20,9 +20,9 @@ import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by behnamreyhani-masoleh on 15-10-18.
@@ -37,68 +37,143 @@ public class ImagePreProcessor {
     private static final double WHITE_PIXEL_THRESHOLD = 0.15;
     private static final double WHITE_PIXEL_THRESHOLD_TWO = 0.15;
 
-    private static byte [] rotateImageFromByteArray(byte [] data, int rotationDegrees) {
-        Matrix mat = new Matrix();
-        mat.postRotate(rotationDegrees);
+    // Structuring elements never change, so they are built once and shared
+    private static Mat sOpenKernel;
+    private static Mat sCloseKernel;
+    private static PDF417Localiser sPDF417Localiser;
 
-        Bitmap tmp = byteArrayToBitmap(data);
-        Bitmap rotated =  Bitmap.createBitmap(tmp, 0, 0, tmp.getWidth(), tmp.getHeight(), mat, true);
-        return bitmapToByteArray(rotated);
+    // The app is locked to landscape, so the sensor image is either upright or turned 180 degrees
+    public static boolean isUpsideDown(int imageRotation) {
+        return imageRotation == 180;
     }
 
-    private static Bitmap byteArrayToBitmap(byte [] data) {
-        return BitmapFactory.decodeByteArray(data, 0, data.length);
-    }
+    // The batch token is checked between every stage, so a decode stops soon after another one wins.
+    // Everything after the JPEG decode stays in a single 8-bit mat with intermediates from the pool.
+    // The barcode region is copied once, straight out of that mat into a pooled array, and the caller
+    // hands the returned source's data back to the pool once it is decoded
+    public static NV21LuminanceSource preProcessImageForPDF417(byte [] data, JpegRegionDecoder jpegDecoder,
+                                               int imageRotation, DecodeBatchToken batchToken,
+                                               ImageBufferPool pool) {
+        NV21LuminanceSource barcode = null;
+        Mat greyscaledMat = null;
+        try {
+            boolean upsideDown = isUpsideDown(imageRotation);
 
-    private static byte [] bitmapToByteArray(Bitmap bm) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bm.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        return stream.toByteArray();
-    }
+            long preProcessStart = ScanTimings.begin(ScanTimings.PRE_PROCESS);
+            try {
+                batchToken.checkpoint();
+                Bitmap bm = jpegDecoder.decode(data, pool);
 
-    public static Bitmap preProcessImageForPDF417(byte [] data, Rect frame, Point screenRes,
-                                                  int cameraOrientation) {
-        Bitmap bm = null;
-        try {
-            // Fix for Nexus 5X bug
-            if (Build.MODEL.equals("Nexus 5X")) {
-                // rotate image 180 degrees
-                data = rotateImageFromByteArray(data, 180);
-            }
+                batchToken.checkpoint();
+                greyscaledMat = convertMatToGrayScale(bm, pool);
+                // Only the greyscaled mat is used from here on
+                pool.releaseBitmap(bm);
 
-            bm = getCroppedBitmapFromData(data, frame, screenRes);
+                if (upsideDown) {
+                    // Turned around in place on the crop only, the JPEG itself is never re-encoded
+                    Core.flip(greyscaledMat, greyscaledMat, -1);
+                }
+            } finally {
+                ScanTimings.end(ScanTimings.PRE_PROCESS, preProcessStart);
+            }
 
-            Mat greyscaledMat = convertMatToGrayScale(bm, cameraOrientation);
+            batchToken.checkpoint();
+            org.opencv.core.Rect pdfRect = locatePDF417(greyscaledMat, batchToken, pool);
+
+            if (pdfRect != null) {
+                // Mat.get walks the view's rows itself, so the region never gets a mat of its own
+                Mat pdf417Region = new Mat(greyscaledMat, pdfRect);
+                byte[] luminance = pool.acquireBytes(pdfRect.width * pdfRect.height);
+                pdf417Region.get(0, 0, luminance);
+                pdf417Region.release();
+                barcode = new NV21LuminanceSource(luminance, pdfRect.width, pdfRect.height, 0, 0,
+                        pdfRect.width, pdfRect.height);
+            }
+        } catch (CancellationException e) {
+            barcode = null;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.releaseMat(greyscaledMat);
+        }
+        return barcode;
+    }
 
-            Mat blurredAdaptive = getBlurredBWUsingAdaptive(greyscaledMat);
+    // Preview frames are NV21, so the first width * height bytes already hold the greyscale image.
+    // Returns where the barcode sits in the frame so it can be decoded from the buffer in place.
+    // The region is in sensor coordinates, finding the barcode doesn't care which way up it is
+    public static Rect findPDF417RegionInPreviewFrame(byte [] data, Point previewSize, Rect frame,
+                                                      Point screenRes, int imageRotation,
+                                                      DecodeBatchToken batchToken, ImageBufferPool pool) {
+        Rect pdfRegion = null;
+        Mat greyscaledMat = null;
+        try {
+            Rect frameRegion = getFrameRegion(frame, screenRes, previewSize.x, previewSize.y,
+                    isUpsideDown(imageRotation));
+
+            batchToken.checkpoint();
+            long preProcessStart = ScanTimings.begin(ScanTimings.PRE_PROCESS);
+            try {
+                greyscaledMat = getFrameRegionFromPreviewFrame(data, previewSize, frameRegion, pool);
+            } finally {
+                ScanTimings.end(ScanTimings.PRE_PROCESS, preProcessStart);
+            }
 
-            bm = cropForPDF417(blurredAdaptive, bm);
+            batchToken.checkpoint();
+            org.opencv.core.Rect pdfRect = locatePDF417(greyscaledMat, batchToken, pool);
 
+            if (pdfRect != null) {
+                pdfRegion = new Rect(pdfRect.x, pdfRect.y, pdfRect.x + pdfRect.width,
+                        pdfRect.y + pdfRect.height);
+                pdfRegion.offset(frameRegion.left, frameRegion.top);
+            }
+        } catch (CancellationException e) {
+            pdfRegion = null;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            pool.releaseMat(greyscaledMat);
         }
-        return bm;
+        return pdfRegion;
     }
 
+    private static org.opencv.core.Rect locatePDF417(Mat greyscaledMat, DecodeBatchToken batchToken,
+                                                     ImageBufferPool pool) {
+        long localiseStart = ScanTimings.begin(ScanTimings.LOCALISE);
+        try {
+            return getPDF417Localiser().locate(greyscaledMat, batchToken, pool);
+        } finally {
+            ScanTimings.end(ScanTimings.LOCALISE, localiseStart);
+        }
+    }
 
     public static List<Bitmap> preProcessImageForOCR(byte [] data, Rect frame, Point screenRes) {
         Bitmap bm;
         List<Bitmap> textBoxList = null;
+        // OCR is a one off scan, everything it allocates is freed once the text boxes are out
+        ImageBufferPool pool = new ImageBufferPool();
         try {
-            bm = getCroppedBitmapFromData(data, frame, screenRes);
+            bm = getCroppedBitmapFromData(data, frame, screenRes, false);
             //  bm = getTestImage(true);
 
-            Mat greyscaledMat = convertMatToGrayScale(bm);
+            Mat greyscaledMat = convertMatToGrayScale(bm, pool);
+            bm.recycle();
 
-            Mat bwForOCR  = convertToBinaryAdaptiveThreshold(greyscaledMat, 21, 20, true);
+            Mat bwForOCR  = convertToBinaryAdaptiveThreshold(greyscaledMat, 21, 20, true, pool);
 
             // Pre-processing for text box recognition
-            Mat bwForTextBoxRecognition = getBlurredBWUsingAdaptive(greyscaledMat);
+            Mat bwForTextBoxRecognition = getBlurredBWUsingAdaptive(greyscaledMat, pool);
             //Mat bwForTextBoxRecognition = getBlurredBWUsingCannyEdge(greyscaledMat);
 
             textBoxList = findTextBoxes(bwForTextBoxRecognition, bwForOCR);
+
+            pool.releaseMat(bwForTextBoxRecognition);
+            pool.releaseMat(bwForOCR);
+            pool.releaseMat(greyscaledMat);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            pool.clear();
         }
         return textBoxList;
     }
@@ -108,55 +183,20 @@ public class ImagePreProcessor {
                 && rect.height < org.height()/1.5 && rect.width < org.width()/1.5;
     }
 
-    private static boolean canBePDF417Rect(org.opencv.core.Rect rect, Mat org) {
-        return (rect.width > 3*rect.height) && (rect.width >= 0.6*org.width());
-    }
-
-    private static Mat getBlurredBWUsingAdaptive(Mat grey) {
-        Mat bw = convertToBinaryAdaptiveThreshold(grey, 13, 10, false);
-        return blurImageForTextBoxRecognition(bw);
-    }
-
-    private static Bitmap cropForPDF417(Mat blurredMat, Bitmap bm) {
-        Mat org = new Mat();
-        Utils.bitmapToMat(bm, org);
-
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(blurredMat, contours, hierarchy, Imgproc.RETR_CCOMP,
-                Imgproc.CHAIN_APPROX_SIMPLE);
-
-        // Indicates that no barcode was found in pre-processing, send message of error back early
-        if (hierarchy.empty()) {
-            return null;
-        }
-
-        org.opencv.core.Rect pdfRect = null;
-        
-        for (int idx = 0; idx>=0; idx = (int) hierarchy.get(0,idx)[0]) {
-            org.opencv.core.Rect rect = Imgproc.boundingRect(contours.get(idx));
-            // assuming the biggest rect in the image is the pdf417 one and getting it
-            if (canBePDF417Rect(rect,org)) {
-                // for testing only
-                if (pdfRect == null || pdfRect.area() < rect.area()) {
-                    pdfRect = rect;
-                }
-            }
-        }
-
-        if (pdfRect == null) {
-            return null;
+    private static Mat getBlurredBWUsingAdaptive(Mat grey, ImageBufferPool pool) {
+        Mat bw = convertToBinaryAdaptiveThreshold(grey, 13, 10, false, pool);
+        try {
+            return blurImageForTextBoxRecognition(bw, pool);
+        } finally {
+            pool.releaseMat(bw);
         }
-
-        return getBitmapFromOpenCVRect(org, pdfRect);
     }
 
-    private static Bitmap getBitmapFromOpenCVRect(Mat org, org.opencv.core.Rect rect) {
-        Mat buffered = addBufferToTextBoxMat(org, rect);
-        Bitmap outBM = Bitmap.createBitmap(buffered.cols(), buffered.rows(),
-                Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(buffered, outBM);
-        return outBM;
+    private static void releaseContours(List<MatOfPoint> contours, Mat hierarchy) {
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+        hierarchy.release();
     }
 
     private static List<Bitmap> findTextBoxes(Mat blurredMat, Mat org) {
@@ -181,92 +221,165 @@ public class ImagePreProcessor {
                 Mat cropped = new Mat(org, rect);
                 double r1 = Core.countNonZero(cropped)/rect.area();
                 
+                cropped.release();
+
                 if (r1 >= WHITE_PIXEL_THRESHOLD) {
                     Mat maskROI = new Mat(mask, rect);
                     maskROI.setTo(new Scalar(0, 0, 0));
                     Imgproc.drawContours(mask, contours, idx, new Scalar(255, 255, 255), 5);
                     double r = (double)Core.countNonZero(maskROI) / rect.area();
+                    maskROI.release();
                     
                     if (r >= WHITE_PIXEL_THRESHOLD_TWO) {
                         Mat bufferedMat = addBufferToTextBoxMat(org, rect);
 
                         // TODO: see which order is faster
-                        FileManager.savePicToExternalDirectory(bufferedMat, "TextBox-" + idx);
+                        DebugImageWriter.submit(bufferedMat, "TextBox-" + idx);
                         //  rescaleMat(bufferedMat, IMAGE_SCALE_FACTOR);
                         Imgproc.rectangle(tmp, rect.br(), rect.tl(), new Scalar(0, 0, 0), 10);
 
                         Bitmap outBM = Bitmap.createBitmap(bufferedMat.cols(), bufferedMat.rows(),
                                 Bitmap.Config.ARGB_8888);
                         Utils.matToBitmap(bufferedMat, outBM);
+                        bufferedMat.release();
                         textBoxes.add(outBM);
                         count++;
                     }
                 }
             }
         }
-        FileManager.savePicToExternalDirectory(tmp, "Boxed");
+        DebugImageWriter.submit(tmp, "Boxed");
+        releaseContours(contours, hierarchy);
+        mask.release();
+        tmp.release();
         return textBoxes;
     }
 
+    // Returns a view into org, no copy of the image is made
     private static Mat addBufferToTextBoxMat(Mat org, org.opencv.core.Rect rect) {
-        Mat shallowCopy = new Mat();
-        org.copyTo(shallowCopy);
-
-        Mat originalBox = new Mat(shallowCopy, rect);
+        Mat originalBox = new Mat(org, rect);
         
         try {
             rect.x-=TEXT_BOX_CROP_PIXEL_BUFFER;
             rect.y-=TEXT_BOX_CROP_PIXEL_BUFFER;
             rect.width+=2*TEXT_BOX_CROP_PIXEL_BUFFER;
             rect.height+=2*TEXT_BOX_CROP_PIXEL_BUFFER;
-            return new Mat(shallowCopy, rect);
+            Mat bufferedBox = new Mat(org, rect);
+            originalBox.release();
+            return bufferedBox;
         } catch (Exception e) {
             return originalBox;
         }
     }
 
-    private static Mat blurImageForTextBoxRecognition(Mat mat) {
-        Mat blurred = new Mat();
-        mat.copyTo(blurred);
+    private static Mat blurImageForTextBoxRecognition(Mat mat, ImageBufferPool pool) {
+        Mat blurred = pool.acquireMat(mat.rows(), mat.cols(), mat.type());
 
         //TODO: Play around with the params for opening and closing, only for recognizing text boxes **
         // First get rid of background noise pixels
-        Mat rectKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(1, 11));
-        Imgproc.morphologyEx(blurred, blurred, Imgproc.MORPH_OPEN, rectKernel);
+        Imgproc.morphologyEx(mat, blurred, Imgproc.MORPH_OPEN, getOpenKernel());
         //saveIntermediateInPipelineToFile(blurred,"Opened");
 
         // Close white image pixels to get white boxes
-        Mat closeKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(80, 1));
-        Imgproc.morphologyEx(blurred, blurred, Imgproc.MORPH_CLOSE, closeKernel);
+        Imgproc.morphologyEx(blurred, blurred, Imgproc.MORPH_CLOSE, getCloseKernel());
        // saveIntermediateInPipelineToFile(blurred, "Closed");
         return blurred;
     }
 
-    private static Mat convertMatToGrayScale(Bitmap org) {
-        return convertMatToGrayScale(org, 0);
+    private static synchronized Mat getOpenKernel() {
+        if (sOpenKernel == null) {
+            sOpenKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(1, 11));
+        }
+        return sOpenKernel;
+    }
+
+    private static synchronized Mat getCloseKernel() {
+        if (sCloseKernel == null) {
+            sCloseKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(80, 1));
+        }
+        return sCloseKernel;
+    }
+
+    // Built on first use, its kernels can't be made before the OpenCV library is loaded
+    private static synchronized PDF417Localiser getPDF417Localiser() {
+        if (sPDF417Localiser == null) {
+            sPDF417Localiser = new PDF417Localiser();
+        }
+        return sPDF417Localiser;
     }
 
-    private static Mat convertMatToGrayScale(Bitmap org, int cameraOrientation) {
-        Mat grayScaled = new Mat();
-        Mat orgMat = new Mat();
+    private static Mat convertMatToGrayScale(Bitmap org, ImageBufferPool pool) {
+        Mat orgMat = pool.acquireMat(org.getHeight(), org.getWidth(), CvType.CV_8UC4);
+        Mat grayScaled = pool.acquireMat(org.getHeight(), org.getWidth(), CvType.CV_8UC1);
         Utils.bitmapToMat(org, orgMat);
 
-        Imgproc.cvtColor(orgMat, grayScaled, Imgproc.COLOR_BGR2GRAY);
+        // bitmapToMat always gives RGBA, whatever the bitmap's config
+        Imgproc.cvtColor(orgMat, grayScaled, Imgproc.COLOR_RGBA2GRAY);
+        pool.releaseMat(orgMat);
         return grayScaled;
     }
 
-    private static Mat convertToBinaryAdaptiveThreshold(Mat greyscaledMat, int blockSize, int i, boolean isBlackOnWhite) {
-        Mat binaryMat = new Mat();
-        Imgproc.adaptiveThreshold(greyscaledMat, binaryMat, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
-                isBlackOnWhite ? Imgproc.THRESH_BINARY : Imgproc.THRESH_BINARY_INV, blockSize, i);
-        return binaryMat;
+    // The full resolution OCR crop is split into bands across the cores, nothing else is decoding while
+    // the OCR scan runs
+    private static Mat convertToBinaryAdaptiveThreshold(Mat greyscaledMat, int blockSize, int i,
+                                                        boolean isBlackOnWhite, ImageBufferPool pool) {
+        int length = (int) greyscaledMat.total();
+        byte[] grey = pool.acquireBytes(length);
+        byte[] binary = pool.acquireBytes(length);
+        Mat binaryMat = pool.acquireMat(greyscaledMat.rows(), greyscaledMat.cols(), CvType.CV_8UC1);
+
+        try {
+            greyscaledMat.get(0, 0, grey);
+            TiledAdaptiveThreshold.threshold(grey, binary, greyscaledMat.cols(), greyscaledMat.rows(),
+                    blockSize, i, !isBlackOnWhite);
+            binaryMat.put(0, 0, binary);
+            return binaryMat;
+        } finally {
+            pool.releaseBytes(binary);
+            pool.releaseBytes(grey);
+        }
+    }
+
+    // Copies just the rows and columns of the Y plane that fall in the region, the rest of the frame
+    // and the interleaved VU samples after it never leave the camera buffer
+    private static Mat getFrameRegionFromPreviewFrame(byte [] data, Point previewSize, Rect region,
+                                                      ImageBufferPool pool) {
+        int width = region.width();
+        int height = region.height();
+        Mat regionMat = pool.acquireMat(height, width, CvType.CV_8UC1);
+        byte[] pixels = pool.acquireBytes(width * height);
+
+        try {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data, (region.top + y) * previewSize.x + region.left, pixels, y * width, width);
+            }
+            regionMat.put(0, 0, pixels);
+        } finally {
+            pool.releaseBytes(pixels);
+        }
+        return regionMat;
     }
 
-    private static Bitmap getCroppedBitmapFromData(byte [] data, Rect frame, Point screenRes) throws Exception {
+    private static Bitmap getCroppedBitmapFromData(byte [] data, Rect frame, Point screenRes,
+                                                   boolean upsideDown) throws Exception {
         BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
-        int height = decoder.getHeight();
-        int width = decoder.getWidth();
+        try {
+            return decoder.decodeRegion(getFrameRegion(frame, screenRes, decoder.getWidth(),
+                    decoder.getHeight(), upsideDown), null);
+        } finally {
+            decoder.recycle();
+        }
+    }
 
+    // Where the framing rect (plus a buffer) falls in a preview frame, in sensor coordinates
+    public static Rect getFrameRegionInPreviewFrame(Rect frame, Point screenRes, Point previewSize,
+                                                    int imageRotation) {
+        return getFrameRegion(frame, screenRes, previewSize.x, previewSize.y, isUpsideDown(imageRotation));
+    }
+
+    // Maps the on-screen framing rect (plus a buffer) onto an image of the given size, mirrored
+    // through the centre when the sensor image is upside down relative to the screen
+    static Rect getFrameRegion(Rect frame, Point screenRes, int width, int height, boolean upsideDown) {
         double heightBuffer = (double) screenRes.y/HEIGHT_BUFFER_RATIO;
         double widthBuffer = (double) screenRes.x/WIDTH_BUFFER_RATIO;
 
@@ -275,8 +388,14 @@ public class ImagePreProcessor {
         Double right = ((double)frame.right/screenRes.x)*width + widthBuffer;
         Double bottom = ((double)frame.bottom/screenRes.y)*height + heightBuffer;
 
-        return decoder.decodeRegion(new Rect(left.intValue(), top.intValue(),
-                right.intValue(), bottom.intValue()), null);
+        Rect region = new Rect(left.intValue(), top.intValue(), right.intValue(), bottom.intValue());
+        region.intersect(0, 0, width, height);
+
+        if (upsideDown) {
+            region.set(width - region.right, height - region.bottom, width - region.left,
+                    height - region.top);
+        }
+        return region;
     }
 
 }
@@ -0,0 +1,111 @@
+package io.clubhub.idscanner.imageutils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+// Decodes only the framing region of a burst picture, as RGB_565 at the largest sample size that still
+// leaves the barcode enough pixels, into a bitmap from the pool. Every picture in a burst has the same
+// size, so the region and sample size are worked out once per burst. The decode options, with their
+// scratch buffer, are kept per decode thread and reused for every picture that thread handles
+public class JpegRegionDecoder {
+    // Narrowest the crop is allowed to get, zxing wants a couple of pixels for every barcode module
+    private static final int MIN_CROP_WIDTH = 1200;
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<BitmapFactory.Options> DECODE_OPTIONS =
+            new ThreadLocal<BitmapFactory.Options>() {
+                @Override
+                protected BitmapFactory.Options initialValue() {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    // Only the luminance is used, half the bytes of ARGB_8888 is plenty
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    options.inMutable = true;
+                    options.inTempStorage = new byte[TEMP_STORAGE_SIZE];
+                    return options;
+                }
+            };
+
+    private final Rect mFrame;
+    private final Point mScreenRes;
+    private final boolean mUpsideDown;
+
+    // Worked out from the first picture of the burst
+    private int mImageWidth;
+    private int mImageHeight;
+    private Rect mRegion;
+    private int mSampleSize;
+
+    public JpegRegionDecoder(Rect frame, Point screenRes, int imageRotation) {
+        mFrame = new Rect(frame);
+        mScreenRes = screenRes;
+        mUpsideDown = ImagePreProcessor.isUpsideDown(imageRotation);
+    }
+
+    // The bitmap comes from the pool and has to go back to it
+    public Bitmap decode(byte[] jpeg, ImageBufferPool pool) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+
+        try {
+            Rect region;
+            int sampleSize;
+            synchronized (this) {
+                updateRegion(decoder.getWidth(), decoder.getHeight());
+                region = mRegion;
+                sampleSize = mSampleSize;
+            }
+
+            BitmapFactory.Options options = DECODE_OPTIONS.get();
+            options.inSampleSize = sampleSize;
+            options.inBitmap = pool.acquireBitmap(region.width() / sampleSize, region.height() / sampleSize,
+                    Bitmap.Config.RGB_565);
+
+            try {
+                Bitmap bitmap = decoder.decodeRegion(region, options);
+                if (bitmap == null) {
+                    pool.releaseBitmap(options.inBitmap);
+                    throw new IOException("Unable to decode the picture");
+                }
+                if (bitmap != options.inBitmap) {
+                    // Decoded into a new bitmap after all, it joins the pool when the caller is done with it
+                    pool.releaseBitmap(options.inBitmap);
+                    pool.adoptBitmap(bitmap);
+                }
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // The sampled size came out different from the pooled bitmap, decode into a new one
+                pool.releaseBitmap(options.inBitmap);
+                options.inBitmap = null;
+                Bitmap bitmap = decoder.decodeRegion(region, options);
+                if (bitmap == null) {
+                    throw new IOException("Unable to decode the picture");
+                }
+                pool.adoptBitmap(bitmap);
+                return bitmap;
+            } finally {
+                options.inBitmap = null;
+            }
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private void updateRegion(int imageWidth, int imageHeight) {
+        if (mRegion != null && imageWidth == mImageWidth && imageHeight == mImageHeight) {
+            return;
+        }
+
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mRegion = ImagePreProcessor.getFrameRegion(mFrame, mScreenRes, imageWidth, imageHeight, mUpsideDown);
+
+        mSampleSize = 1;
+        while (mRegion.width() / (mSampleSize * 2) >= MIN_CROP_WIDTH) {
+            mSampleSize *= 2;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.clubhub.idscanner.imageutils;
+
+import android.os.Build;
+import android.os.Trace;
+
+import io.clubhub.idscanner.pipeline.LatencyHistogram;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// How long each stage of a scan takes, one histogram per stage for the life of the app. Spans are timed
+// with System.nanoTime() and also show up as sections in systrace. A span is begun and ended on the same
+// thread, except SCAN which runs from the button press to the verdict and is only timed
+public class ScanTimings {
+    // From the button press until the verdict is on its way to the UI, or the batch gave up
+    public static final int SCAN = 0;
+    // Sharpness and glare check of a preview frame, on the main thread where preview frames arrive
+    public static final int QUALITY_GATE = 1;
+    // One preview frame or picture, from the start of pre-processing until zxing is done with it
+    public static final int FRAME = 2;
+    // Cropping the frame and turning it greyscale
+    public static final int PRE_PROCESS = 3;
+    public static final int LOCALISE = 4;
+    public static final int ZXING_DECODE = 5;
+    // Reading the AAMVA payload up to and including the verdict
+    public static final int PARSE = 6;
+    // Building the record and writing it to the journal and night stats
+    public static final int PERSIST = 7;
+    public static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {"scan", "quality_gate", "frame", "pre_process",
+            "localise", "zxing_decode", "parse", "persist"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[STAGE_COUNT];
+
+    static {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            HISTOGRAMS[stage] = new LatencyHistogram();
+        }
+    }
+
+    // Returns the start time to hand back to end()
+    public static long begin(int stage) {
+        Trace.beginSection(STAGE_NAMES[stage]);
+        return System.nanoTime();
+    }
+
+    public static void end(int stage, long startNanos) {
+        HISTOGRAMS[stage].recordNanos(System.nanoTime() - startNanos);
+        Trace.endSection();
+    }
+
+    // For spans that start and end on different threads, these can't be trace sections
+    public static void record(int stage, long startNanos) {
+        HISTOGRAMS[stage].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+
+    // Times are in ms, tagged with the device so dumps from different phones can be told apart
+    public static JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("model", Build.MANUFACTURER + " " + Build.MODEL);
+            json.put("sdk", Build.VERSION.SDK_INT);
+
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                LatencyHistogram histogram = HISTOGRAMS[stage];
+                JSONObject stageJSON = new JSONObject();
+                stageJSON.put("count", histogram.getCount());
+                stageJSON.put("mean", toMillis(histogram.getMeanMicros()));
+
+                for (double percentile : PERCENTILES) {
+                    stageJSON.put("p" + (int) percentile, toMillis(histogram.getPercentileMicros(percentile)));
+                }
+                stageJSON.put("max", toMillis(histogram.getMaxMicros()));
+                json.put(STAGE_NAMES[stage], stageJSON);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000d;
+    }
+}
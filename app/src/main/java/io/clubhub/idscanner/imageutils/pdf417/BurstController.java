@@ -0,0 +1,111 @@
+package io.clubhub.idscanner.imageutils.pdf417;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Picks how many pictures a burst takes and how far apart, from how past bursts on this phone went.
+// Keeps a rolling success rate, pictures needed and decode time for each lighting condition, and saves
+// them in shared prefs so a new session starts from what the last one learned. A phone that reads
+// the card off the first picture ends up taking one, a struggling one gets up to MAX_BURST_SIZE
+class BurstController {
+    private static final String BURST_PREF = "burst_controller_pref";
+    // Need to be appended by the lighting condition
+    private static final String SUCCESS_RATE_KEY = "success_rate_key-";
+    private static final String PICTURES_NEEDED_KEY = "pictures_needed_key-";
+    private static final String DECODE_TIME_KEY = "decode_time_key-";
+
+    private static final String[] CONDITIONS = {"light_off", "light_on"};
+
+    private static final int MIN_BURST_SIZE = 1;
+    private static final int MAX_BURST_SIZE = 6;
+    private static final int MIN_PICTURE_INTERVAL = 25;
+    private static final int MAX_PICTURE_INTERVAL = 150;
+    // Gives the camera time to settle after the button press, nothing to learn here
+    private static final int INITIAL_PICTURE_DELAY = 50;
+
+    // Weight of the latest burst in the rolling averages
+    private static final float SMOOTHING = 0.2f;
+    // Starting point for a phone with no history, works out to the old fixed burst of 4
+    private static final float DEFAULT_SUCCESS_RATE = 0.5f;
+    private static final float DEFAULT_PICTURES_NEEDED = 2.5f;
+    private static final float DEFAULT_DECODE_TIME = 100;
+
+    private final SharedPreferences mPrefs;
+    private final int mDecodeWorkerCount;
+    private final float[] mSuccessRate = new float[CONDITIONS.length];
+    private final float[] mPicturesNeeded = new float[CONDITIONS.length];
+    private final float[] mDecodeTime = new float[CONDITIONS.length];
+
+    BurstController(Context context, int decodeWorkerCount) {
+        mPrefs = context.getSharedPreferences(BURST_PREF, Context.MODE_PRIVATE);
+        mDecodeWorkerCount = decodeWorkerCount;
+
+        for (int condition = 0; condition < CONDITIONS.length; condition++) {
+            mSuccessRate[condition] = mPrefs.getFloat(SUCCESS_RATE_KEY + CONDITIONS[condition],
+                    DEFAULT_SUCCESS_RATE);
+            mPicturesNeeded[condition] = mPrefs.getFloat(PICTURES_NEEDED_KEY + CONDITIONS[condition],
+                    DEFAULT_PICTURES_NEEDED);
+            mDecodeTime[condition] = mPrefs.getFloat(DECODE_TIME_KEY + CONDITIONS[condition],
+                    DEFAULT_DECODE_TIME);
+        }
+    }
+
+    // More pictures the more are usually needed, with extra headroom the less often bursts succeed
+    synchronized int getBurstSize(boolean lightOn) {
+        int condition = getCondition(lightOn);
+        double burstSize = Math.ceil(mPicturesNeeded[condition] * (2 - mSuccessRate[condition]));
+        return (int) Math.max(MIN_BURST_SIZE, Math.min(MAX_BURST_SIZE, burstSize));
+    }
+
+    // Pictures taken faster than the workers can decode them only wait in the queue
+    synchronized int getPictureInterval(boolean lightOn) {
+        int interval = Math.round(mDecodeTime[getCondition(lightOn)] / mDecodeWorkerCount);
+        return Math.max(MIN_PICTURE_INTERVAL, Math.min(MAX_PICTURE_INTERVAL, interval));
+    }
+
+    int getInitialPictureDelay() {
+        return INITIAL_PICTURE_DELAY;
+    }
+
+    // picturesTaken is how many pictures went to a decode before the batch finished, a failed burst
+    // counts as needing one more than it had
+    synchronized void recordBurst(boolean lightOn, boolean successful, int picturesTaken,
+                                  long averageDecodeTime) {
+        if (picturesTaken == 0) {
+            return;
+        }
+
+        int condition = getCondition(lightOn);
+        mSuccessRate[condition] = smooth(mSuccessRate[condition], successful ? 1 : 0);
+        mPicturesNeeded[condition] = smooth(mPicturesNeeded[condition],
+                successful ? picturesTaken : Math.min(picturesTaken + 1, MAX_BURST_SIZE));
+        mDecodeTime[condition] = smooth(mDecodeTime[condition], averageDecodeTime);
+
+        // apply() so the UI thread never waits on the write
+        mPrefs.edit()
+                .putFloat(SUCCESS_RATE_KEY + CONDITIONS[condition], mSuccessRate[condition])
+                .putFloat(PICTURES_NEEDED_KEY + CONDITIONS[condition], mPicturesNeeded[condition])
+                .putFloat(DECODE_TIME_KEY + CONDITIONS[condition], mDecodeTime[condition])
+                .apply();
+    }
+
+    private static float smooth(float average, float latest) {
+        return average + SMOOTHING * (latest - average);
+    }
+
+    private static int getCondition(boolean lightOn) {
+        return lightOn ? 1 : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder summary = new StringBuilder("Burst controller:");
+        for (int condition = 0; condition < CONDITIONS.length; condition++) {
+            summary.append(' ').append(CONDITIONS[condition])
+                    .append(" (success ").append(mSuccessRate[condition])
+                    .append(", pictures ").append(mPicturesNeeded[condition])
+                    .append(", decode ms ").append(mDecodeTime[condition]).append(')');
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package io.clubhub.idscanner.imageutils.pdf417;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the barcode decodes on their own pool sized for the device, rather than on the process wide
+// AsyncTask pool. The queue is bounded, anything past it gets rejected instead of piling up
+class DecodeExecutor extends ThreadPoolExecutor {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    // Leave a core for the UI and camera threads, more than 4 decodes of near identical frames don't help
+    static final int THREAD_COUNT = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    private static final int QUEUE_CAPACITY = THREAD_COUNT;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "PDF417Decode #" + mCount.getAndIncrement());
+        }
+    };
+
+    private final Runnable mOnTerminated;
+
+    // onTerminated runs once after a shutdown, when the last running decode has returned
+    DecodeExecutor(Runnable onTerminated) {
+        super(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), THREAD_FACTORY);
+        mOnTerminated = onTerminated;
+        // Threads go away between guests instead of sitting idle all night
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void terminated() {
+        super.terminated();
+        mOnTerminated.run();
+    }
+}
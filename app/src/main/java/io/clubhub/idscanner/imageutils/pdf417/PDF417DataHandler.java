@@ -1,154 +1,118 @@
 package io.clubhub.idscanner.imageutils.pdf417;
 
-import android.os.AsyncTask;
-
 import io.clubhub.idscanner.imageutils.IDDictionary;
+import io.clubhub.idscanner.imageutils.ScanTimings;
+import io.clubhub.idscanner.pipeline.AAMVAParser;
+import io.clubhub.idscanner.pipeline.DateValidator;
+import io.clubhub.idscanner.pipeline.IDFieldExtractor;
+import io.clubhub.idscanner.pipeline.IDRecord;
+import io.clubhub.idscanner.pipeline.VerdictListener;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.LinkedHashMap;
+import java.util.Date;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  * Created by benreyhani on 15-12-20.
  */
-public class PDF417DataHandler extends AsyncTask<String, Boolean, Boolean> {
-    private JSONObject mJSONObject;
+// Runs on the decode thread that won the batch, straight after zxing returns. The verdict goes to
+// the UI as soon as both dates are read, the rest of the record is parsed and persisted after
+public class PDF417DataHandler {
+    // Shared so today's date is only worked out once a day, not once a scan
+    private static final DateValidator DATE_VALIDATOR = new DateValidator();
+
+    private IDRecord mRecord = new IDRecord();
     private PDF417Helper mHelper;
+    private boolean mIsValid;
+    private int mBirthDate;
+    private int mAge;
+    // When the ID was checked, stored as the entrance time once the scan is persisted
+    private long mEntranceTimeMillis;
 
     public PDF417DataHandler(PDF417Helper helper) {
-        mJSONObject = new JSONObject();
         mHelper = helper;
     }
 
-    @Override
-    protected Boolean doInBackground(String ... decodedResult) {
-        Map<String, ArrayList<String>> dictionary =
-                new LinkedHashMap<>(IDDictionary.getBarcodeIdDictionary());
-
-        String [] values = decodedResult[0].split("\\r?\\n");
-        boolean validityAlreadyReported = false;
-        boolean isValid = false;
-
-        for (String value : values) {
-            
-            //Denotes that all the required attributes have been set to JSON object
-            if (isAllDataObtained() || isCancelled()) {
-                break;
-            }
-            
-            value = value.trim();
-            // Assuming that all IDs being scanned have 3 letter trigger at the beginning like ON driver license
-            if (value.length() > 3) {
-            
-                for (Map.Entry<String, ArrayList<String>> entry : dictionary.entrySet()) {
-                    String key = entry.getKey();
-                    
-                    for (String trigger : dictionary.get(key)){
-                        
-                        if (value.substring(0, 3).equals(trigger)) {
-                            
-                            try {
-                                // ON Driver's license has ',' at end of last name, fix for that
-                                mJSONObject.put(key, key.equals(IDDictionary.LAST_NAME_KEY) ?
-                                        value.substring(3, value.length() - 1) : value.substring(3));
-
-                                if (canCheckIDValidity() && !validityAlreadyReported){
-                                    validityAlreadyReported = true;
-                                    isValid = isIDValid();
-                                    publishProgress(isValid);
-                                    
-                                    if (!isValid) {
-                                        // drop everything if its not valid id
-                                        cancel(true);
-                                    }
-                                }
-                                
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                            }
-                        }
+    // Returns whether every field was read off the ID
+    public boolean handle(String decodedResult) {
+        VerdictListener listener = new VerdictListener(DATE_VALIDATOR, IDDictionary.ACTIVATED_DRINKING_AGE,
+                new VerdictListener.Callback() {
+                    @Override
+                    public boolean onVerdict(boolean valid, int birthDate) {
+                        mEntranceTimeMillis = System.currentTimeMillis();
+                        mIsValid = valid;
+                        mBirthDate = birthDate;
+                        mAge = getAge(birthDate);
+                        mHelper.postIDValidity(valid);
+
+                        // drop everything if its not valid id
+                        return valid;
                     }
-                }
-            }
-        }
-        
-        Boolean successfulDataExtract = isAllDataObtained();
-        
-        if (successfulDataExtract && !isCancelled() && isValid) {
-            mJSONObject.remove(IDDictionary.ID_EXPIRY_DATE_KEY);
-            mHelper.sendHTTPRequest(mJSONObject);
-            mHelper.storeData(mJSONObject);
-        }
-        return successfulDataExtract;
-    }
-
-    @Override
-    protected void onProgressUpdate(Boolean ... isValidID) {
-        mHelper.reportIDValidity(isValidID[0]);
-    }
-
-    // Checks whether person is 19+, and if ID is not expired. Dates are stored in form: yyyyMMdd, also stores entrance time
-    private boolean isIDValid(){
-        SimpleDateFormat scannerDateFormat = new SimpleDateFormat(IDDictionary.ON_DRIVERS_LICENSE_DATE_FORMAT
-                , Locale.getDefault());
+                },
+                new IDFieldExtractor.FieldListener() {
+                    @Override
+                    public boolean onField(IDRecord record, int field) {
+                        //Denotes that all the required attributes have been read
+                        return !isAllDataObtained();
+                    }
+                });
 
-        boolean valid;
+        IDFieldExtractor extractor = new AAMVAParser(IDDictionary.getJurisdictions());
+        long parseStart = ScanTimings.begin(ScanTimings.PARSE);
         try {
-            Calendar currentDate = Calendar.getInstance();
-            storeCurrentTime(currentDate);
-
-            Calendar expiryDate = Calendar.getInstance();
-            expiryDate.setTime(
-                    scannerDateFormat.parse(mJSONObject.getString(IDDictionary.ID_EXPIRY_DATE_KEY)));
-
-            Calendar birthDate = Calendar.getInstance();
-            birthDate.setTime(
-                    scannerDateFormat.parse(mJSONObject.getString(IDDictionary.BIRTH_DATE_KEY)));
-
-            int age = getAge(currentDate, birthDate);
-
-            valid = expiryDate.after(currentDate) &&
-                     age >= IDDictionary.ACTIVATED_DRINKING_AGE;
+            extractor.extract(decodedResult, mRecord, listener);
+        } finally {
+            ScanTimings.end(ScanTimings.PARSE, parseStart);
+        }
 
-            mJSONObject.put("age", age);
-        } catch (Exception e) {
-            e.printStackTrace();
-            valid = false;
+        boolean successfulDataExtract = isAllDataObtained();
+
+        if (!listener.isVerdictGiven()) {
+            // Without both dates there is nothing to check the ID against
+            mHelper.postIDValidity(false);
+        } else if (successfulDataExtract && mIsValid) {
+            long persistStart = ScanTimings.begin(ScanTimings.PERSIST);
+            try {
+                // Goes to the server from the scan journal, in batches
+                mHelper.storeData(toJSON(mRecord, mBirthDate, mAge, mEntranceTimeMillis));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            } finally {
+                ScanTimings.end(ScanTimings.PERSIST, persistStart);
+            }
         }
-        return valid;
+        return successfulDataExtract;
     }
 
-    private int getAge(Calendar current, Calendar birth) {
-        int age = current.get(Calendar.YEAR) - birth.get(Calendar.YEAR);
-
-        if ((birth.get(Calendar.MONTH) > current.get(Calendar.MONTH))
-                || (birth.get(Calendar.MONTH) == current.get(Calendar.MONTH) &&
-                    birth.get(Calendar.DAY_OF_MONTH) > current.get(Calendar.DAY_OF_MONTH))){
-            age--;
-        }
-        return age;
+    private int getAge(int birthDate) {
+        return birthDate == DateValidator.INVALID_DATE ? 0 :
+                DateValidator.getAge(birthDate, DATE_VALIDATOR.getToday());
     }
 
     private boolean isAllDataObtained(){
-        return mJSONObject.has(IDDictionary.ID_EXPIRY_DATE_KEY) && mJSONObject.has(IDDictionary.BIRTH_DATE_KEY)
-                && mJSONObject.has(IDDictionary.FIRST_NAME_KEY) && mJSONObject.has(IDDictionary.LAST_NAME_KEY)
-                    && mJSONObject.has(IDDictionary.GENDER_KEY) && mJSONObject.has(IDDictionary.ID_KEY);
+        return mRecord.hasAll();
     }
 
-    private boolean canCheckIDValidity(){
-        return mJSONObject.has(IDDictionary.BIRTH_DATE_KEY) && mJSONObject.has(IDDictionary.ID_EXPIRY_DATE_KEY);
-    }
+    // The JSON is only built once the ID is known to be valid, the expiry date isn't sent. The birth
+    // date goes in as yyyyMMdd from the packed date, cards write it in their jurisdiction's format
+    public static JSONObject toJSON(IDRecord record, int birthDate, int age, long entranceTimeMillis)
+            throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int field = 0; field < IDRecord.FIELD_COUNT; field++) {
+            if (field == IDRecord.BIRTH_DATE) {
+                json.put(IDRecord.getKey(field), DateValidator.format(birthDate));
+            } else if (field != IDRecord.ID_EXPIRY_DATE) {
+                json.put(IDRecord.getKey(field), record.getString(field));
+            }
+        }
+        json.put("age", age);
 
-    private void storeCurrentTime(Calendar currentTime) throws Exception {
         SimpleDateFormat dateFormat = new SimpleDateFormat(IDDictionary.CLUBHUB_STORING_DATE_FORMAT,
                 Locale.getDefault());
-        String formattedDate = dateFormat.format(currentTime.getTime());
-        mJSONObject.put(IDDictionary.ENTRANCE_TIME_KEY, formattedDate);
+        json.put(IDDictionary.ENTRANCE_TIME_KEY, dateFormat.format(new Date(entranceTimeMillis)));
+        return json;
     }
 }
@@ -1,71 +1,174 @@
 package io.clubhub.idscanner.imageutils.pdf417;
 
-import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
 import io.clubhub.idscanner.imageutils.ImagePreProcessor;
-import com.google.zxing.BinaryBitmap;
+import io.clubhub.idscanner.imageutils.JpegRegionDecoder;
+import io.clubhub.idscanner.imageutils.ScanTimings;
+import io.clubhub.idscanner.pipeline.BarcodeDecoder;
+import io.clubhub.idscanner.pipeline.BarcodeFrameFuser;
+import io.clubhub.idscanner.pipeline.NV21LuminanceSource;
+import io.clubhub.idscanner.pipeline.PDF417BarcodeDecoder;
+
 import com.google.zxing.LuminanceSource;
-import com.google.zxing.RGBLuminanceSource;
-import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
-import com.google.zxing.pdf417.PDF417Reader;
+
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by behnamreyhani-masoleh on 15-11-02.
  */
 // Takes care of PDF417 decode using the zxing library
 public class PDF417DecodeAsyncTask extends AsyncTask<Void, Void, Boolean> {
+    private static final BarcodeDecoder PDF417_DECODER = new PDF417BarcodeDecoder();
+
     private PDF417Helper mHelper;
     private byte[] mData;
     private Point mScreenRes;
     private Rect mFramingRect;
     private String mResponse;
-    private int mCameraOrientation;
+    // Degrees the sensor image is turned from upright, see CameraConfigManager
+    private int mImageRotation;
+    // Only set when mData is an NV21 preview frame rather than a JPEG
+    private Point mPreviewSize;
+    private DecodeBatchToken mBatchToken;
+    // Shared by the pictures of this burst, null when decoding preview frames
+    private JpegRegionDecoder mJpegRegionDecoder;
+    // Collects this batch's failed frames, see BarcodeFrameFuser
+    private BarcodeFrameFuser mFrameFuser;
+    // How long pre-processing and decoding this frame took
+    private long mDecodeNanos;
 
     public PDF417DecodeAsyncTask(byte[] data, PDF417Helper helper, Point screenRes,
-                                 Rect framingRect, int cameraOrientation) {
+                                 Rect framingRect, int imageRotation, DecodeBatchToken batchToken) {
         mData = data;
         mHelper = helper;
         mScreenRes = screenRes;
         mFramingRect = framingRect;
-        mCameraOrientation = cameraOrientation;
+        mImageRotation = imageRotation;
+        mBatchToken = batchToken;
+        mJpegRegionDecoder = helper.getJpegRegionDecoder();
+        mFrameFuser = helper.getFrameFuser();
+    }
+
+    public PDF417DecodeAsyncTask(byte[] data, Point previewSize, PDF417Helper helper,
+                                 Point screenRes, Rect framingRect, int imageRotation,
+                                 DecodeBatchToken batchToken) {
+        this(data, helper, screenRes, framingRect, imageRotation, batchToken);
+        mPreviewSize = previewSize;
     }
 
     @Override
     protected Boolean doInBackground(Void... values) {
-        Bitmap pdf417Barcode = ImagePreProcessor.preProcessImageForPDF417(mData, mFramingRect, mScreenRes, mCameraOrientation);
+        String result;
+        long frameStart = ScanTimings.begin(ScanTimings.FRAME);
+        try {
+            result = decode();
+        } finally {
+            ScanTimings.end(ScanTimings.FRAME, frameStart);
+            mDecodeNanos = System.nanoTime() - frameStart;
+        }
 
-        if (pdf417Barcode == null) {
+        // Tells the rest of the batch to stop right away, not once this result reaches the UI.
+        // Only the first decode to finish the batch counts, the data is handled once
+        if (result == null || !mBatchToken.finish()) {
+            return Boolean.FALSE;
+        }
+
+        try {
+            mResponse = result;
+            mHelper.handleDecodedData(result);
+            return Boolean.TRUE;
+        } catch (Exception e) {
+            e.printStackTrace();
             return Boolean.FALSE;
         }
+    }
+
+    // Returns the barcode text, or null if there was no barcode or the batch no longer needs it
+    private String decode() {
+        NV21LuminanceSource pdf417Barcode = isPreviewFrame() ? getBarcodeFromPreviewFrame()
+                : getBarcodeFromPicture();
+
+        if (pdf417Barcode == null) {
+            return null;
+        }
 
         try {
-            Result result = (new PDF417Reader()).decode(bitmapToBinaryBitmap(pdf417Barcode));
-            if (result.getText() != null) {
-                mResponse = result.getText();
-                return Boolean.TRUE;
+            // Another decode in the batch may have won while this one was pre-processing
+            return isCancelled() ? null : decodeBarcode(pdf417Barcode);
+        } finally {
+            // A picture's barcode was copied into the pool, a preview frame's is read in place
+            if (!isPreviewFrame()) {
+                mHelper.getImageBufferPool().releaseBytes(pdf417Barcode.getYuvData());
             }
+        }
+    }
 
+    private String decodeBarcode(NV21LuminanceSource pdf417Barcode) {
+        long decodeStart = ScanTimings.begin(ScanTimings.ZXING_DECODE);
+        try {
+            String result = PDF417_DECODER.decode(pdf417Barcode, mBatchToken);
+            if (result != null) {
+                return result;
+            }
+
+            // Rows this frame couldn't read may be readable in the others, try them all merged together
+            LuminanceSource fusedBarcode = mFrameFuser.addFailedFrame(pdf417Barcode, mBatchToken);
+            return fusedBarcode == null ? null : PDF417_DECODER.decode(fusedBarcode, mBatchToken);
+        } catch (CancellationException e) {
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
-            return Boolean.FALSE;
+            return null;
+        } finally {
+            ScanTimings.end(ScanTimings.ZXING_DECODE, decodeStart);
         }
-        return Boolean.FALSE;
     }
 
     protected void onPostExecute(Boolean successful) {
-        mHelper.reportResult(successful, successful ? mResponse : null);
+        mHelper.reportResult(this, successful, successful ? mResponse : null);
+    }
+
+    @Override
+    protected void onCancelled(Boolean successful) {
+        // Still has to be reported so the helper can finish the batch and recycle the frame
+        mHelper.reportResult(this, false, null);
+    }
+
+    public boolean isPreviewFrame() {
+        return mPreviewSize != null;
     }
 
-    private BinaryBitmap bitmapToBinaryBitmap(Bitmap pdf417Bitmap) {
-        int [] pixels = new int[pdf417Bitmap.getWidth()*pdf417Bitmap.getHeight()];
-        pdf417Bitmap.getPixels(pixels, 0, pdf417Bitmap.getWidth(), 0, 0, pdf417Bitmap.getWidth(),
-                pdf417Bitmap.getHeight());
-        LuminanceSource source = new RGBLuminanceSource(pdf417Bitmap.getWidth(), pdf417Bitmap.getHeight(), pixels);
-        return new BinaryBitmap(new HybridBinarizer(source));
+    public long getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    // The pre-processed barcode is already greyscale, its bytes go to the decoder as luminance
+    private NV21LuminanceSource getBarcodeFromPicture() {
+        return ImagePreProcessor.preProcessImageForPDF417(mData, mJpegRegionDecoder, mImageRotation,
+                mBatchToken, mHelper.getImageBufferPool());
+    }
+
+    // Reads the barcode region from the frame buffer in place, no bitmap or pixel array in between
+    private NV21LuminanceSource getBarcodeFromPreviewFrame() {
+        Rect pdf417Region = ImagePreProcessor.findPDF417RegionInPreviewFrame(mData, mPreviewSize,
+                mFramingRect, mScreenRes, mImageRotation, mBatchToken, mHelper.getImageBufferPool());
+
+        if (pdf417Region == null) {
+            return null;
+        }
+
+        // The region is in sensor coordinates, an upside down sensor gets read back to front
+        return new NV21LuminanceSource(mData, mPreviewSize.x, mPreviewSize.y, pdf417Region.left,
+                pdf417Region.top, pdf417Region.width(), pdf417Region.height(),
+                ImagePreProcessor.isUpsideDown(mImageRotation));
     }
 }
@@ -1,51 +1,152 @@
 package io.clubhub.idscanner.imageutils.pdf417;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 
 import io.clubhub.idscanner.FileManager;
-import io.clubhub.idscanner.HTTPHelper;
+import io.clubhub.idscanner.R;
 import io.clubhub.idscanner.ScannerActivity;
+import io.clubhub.idscanner.UploadScheduler;
 import io.clubhub.idscanner.camera.CameraManager;
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+import io.clubhub.idscanner.imageutils.IDDictionary;
+import io.clubhub.idscanner.imageutils.ImageBufferPool;
+import io.clubhub.idscanner.imageutils.ImagePreProcessor;
+import io.clubhub.idscanner.imageutils.JpegRegionDecoder;
+import io.clubhub.idscanner.imageutils.ScanTimings;
+import io.clubhub.idscanner.pipeline.BarcodeFrameFuser;
+import io.clubhub.idscanner.pipeline.FrameQualityGate;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Created by behnamreyhani-masoleh on 15-12-15.
  */
 public class PDF417Helper {
+    private static final String TAG = "PDF417Helper";
 
-    private static final int INITIAL_PICTURE_TAKE_DELAY = 50;
-    private static final int PICTURE_TAKING_INTERVAL = 25;
-    private static final int MAX_THREAD_COUNT = 4;
+    // Gives up on a preview frame scan if nothing has decoded within this many ms
+    private static final int PREVIEW_SCAN_TIMEOUT = 3000;
 
     private int mStartedThreadCount;
     private int mFinishedThreadCount;
+    private int mPreviewFramesInFlight;
+    // Picture burst of the current batch, as picked by mBurstController
+    private int mBurstSize;
+    private int mPictureInterval;
+    private boolean mBurstLightOn;
+    private long mBurstDecodeNanos;
 
     private boolean mScanningsCurrentlyInSession;
     private boolean mSuccessfullyDecoded;
+    private boolean mStreamingPreviewFrames;
+    private boolean mCapturingPictures;
+    private boolean mReleased;
+    // When the current batch was started, for ScanTimings
+    private long mScanStartNanos;
+    private DecodeBatchToken mBatchToken = new DecodeBatchToken();
+    private BarcodeFrameFuser mFrameFuser = new BarcodeFrameFuser();
+    // Set up again for every burst, the framing rect and rotation can change in between
+    private JpegRegionDecoder mJpegRegionDecoder;
 
     private ScannerActivity mScannerActivity;
     private CameraManager mCameraManager;
     private FileManager mFileManager;
-    private HTTPHelper mHTTPHelper;
+    private Handler mHandler;
+    private DecodeExecutor mDecodeExecutor;
+    private BurstController mBurstController;
+    // Shared by every decode of the session so pre-processing reuses its mats
+    private ImageBufferPool mImageBufferPool;
+    private List<PDF417DecodeAsyncTask> mRunningTasks = new ArrayList<>();
 
     private static final boolean DEBUG_DECODE = false;
+    // Whether scans decode straight from the preview stream or take a burst of pictures. Preview frames
+    // unless switched from the scan timings dialog, which keeps the burst path reachable on a phone
+    private static final String DECODE_PREF = "decode_pref";
+    private static final String DECODE_PREVIEW_FRAMES_KEY = "decode_preview_frames_key";
+    private SharedPreferences mDecodePrefs;
+    private boolean mDecodePreviewFrames;
+    // What the current batch decodes, a switch only applies from the next one
+    private boolean mBatchDecodesPreviewFrames;
 
     Camera.PictureCallback mCallback = new Camera.PictureCallback() {
     
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
             mCameraManager.restartCamera();
+
+            // A decode already won, this picture is not needed
+            if (mBatchToken.isFinished()) {
+                stopCapturingPictures();
+                return;
+            }
+
             mStartedThreadCount++;
             startAsyncTaskInParallel(new PDF417DecodeAsyncTask(data, PDF417Helper.this,
                     mCameraManager.getScreenRes(), mCameraManager.getFramingRect(),
-                    mCameraManager.getCameraOrienation()));
+                    mCameraManager.getImageRotation(), mBatchToken));
     
-            if (mStartedThreadCount < MAX_THREAD_COUNT) {
-               takePictureWithDelay(PICTURE_TAKING_INTERVAL);
+            if (mStartedThreadCount < mBurstSize) {
+               takePictureWithDelay(mPictureInterval);
+            } else {
+                mCapturingPictures = false;
+            }
+        }
+    };
+
+    Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            // Buffers that arrive after the scan stopped are simply dropped with the callback
+            if (!mStreamingPreviewFrames || mBatchToken.isFinished() || data == null) {
+                return;
+            }
+
+            // All decode threads are busy, this frame is skipped rather than queued
+            if (!mCameraManager.acceptPreviewFrame(data)) {
+                return;
+            }
+
+            // Blurred or washed out frames never get as far as a decode thread
+            if (!isFrameWorthDecoding(data)) {
+                mCameraManager.rejectPreviewFrame(data);
+                return;
+            }
+
+            mPreviewFramesInFlight++;
+            startAsyncTaskInParallel(new PDF417DecodeAsyncTask(data, mCameraManager.getCameraRes(),
+                    PDF417Helper.this, mCameraManager.getScreenRes(), mCameraManager.getFramingRect(),
+                    mCameraManager.getImageRotation(), mBatchToken));
+        }
+    };
+
+    // Only used on the main thread. The camera is opened there, so that is where it delivers preview frames
+    // and the gate runs once per frame, about a tenth of a ms per framing rect on a desktop JVM. The time
+    // on the phone shows up as the quality gate in the scan timings
+    private FrameQualityGate mFrameQualityGate = new FrameQualityGate();
+    // Where the framing rect falls in a preview frame, worked out when the preview stream starts since
+    // the preview size, framing rect and rotation all stay put until it stops
+    private Rect mPreviewFrameRegion;
+    private int mPreviewFrameWidth;
+
+    private Runnable mPreviewScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            stopPreviewFrameDecode();
+            // Frames still being decoded stop at their next stage
+            mBatchToken.finish();
+            if (mPreviewFramesInFlight == 0) {
+                finishBatch();
             }
         }
     };
@@ -54,7 +155,38 @@ public class PDF417Helper {
         mScannerActivity = activity;
         mCameraManager = mScannerActivity.getCameraManager();
         mFileManager = fileManager;
-        mHTTPHelper = new HTTPHelper(mScannerActivity);
+        mHandler = new Handler();
+        mImageBufferPool = new ImageBufferPool();
+        mDecodeExecutor = new DecodeExecutor(new Runnable() {
+            @Override
+            public void run() {
+                // Every decode has handed its buffers back by now, nothing can take them out again
+                mImageBufferPool.clear();
+            }
+        });
+        mBurstController = new BurstController(mScannerActivity, DecodeExecutor.THREAD_COUNT);
+        mDecodePrefs = mScannerActivity.getSharedPreferences(DECODE_PREF, Context.MODE_PRIVATE);
+        mDecodePreviewFrames = mDecodePrefs.getBoolean(DECODE_PREVIEW_FRAMES_KEY, true);
+        loadJurisdictions();
+    }
+
+    // Without the profile file only Ontario cards can be read, scanning still works for those
+    private void loadJurisdictions() {
+        try {
+            IDDictionary.loadJurisdictions(mScannerActivity.getResources().openRawResource(R.raw.jurisdictions));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load jurisdiction profiles", e);
+        }
+    }
+
+    public boolean isDecodingPreviewFrames() {
+        return mDecodePreviewFrames;
+    }
+
+    // Called on the UI thread, like decodeBatch
+    public void setDecodePreviewFrames(boolean decodePreviewFrames) {
+        mDecodePreviewFrames = decodePreviewFrames;
+        mDecodePrefs.edit().putBoolean(DECODE_PREVIEW_FRAMES_KEY, decodePreviewFrames).apply();
     }
 
     public boolean currentlyScanning(){
@@ -63,70 +195,269 @@ public class PDF417Helper {
 
     public void decodeBatch(){
         mScanningsCurrentlyInSession = true;
-        takePictureWithDelay(INITIAL_PICTURE_TAKE_DELAY);
+        mScanStartNanos = System.nanoTime();
+        mBatchToken = new DecodeBatchToken();
+        // Frames from an earlier batch may be of a different card
+        mFrameFuser = new BarcodeFrameFuser();
+        setUploadsHeldBack(true);
+
+        mBatchDecodesPreviewFrames = mDecodePreviewFrames;
+        if (mBatchDecodesPreviewFrames) {
+            startPreviewFrameDecode();
+        } else {
+            mCapturingPictures = true;
+            mJpegRegionDecoder = new JpegRegionDecoder(mCameraManager.getFramingRect(),
+                    mCameraManager.getScreenRes(), mCameraManager.getImageRotation());
+            mBurstLightOn = mCameraManager.isLightOn();
+            mBurstSize = mBurstController.getBurstSize(mBurstLightOn);
+            mPictureInterval = mBurstController.getPictureInterval(mBurstLightOn);
+            takePictureWithDelay(mBurstController.getInitialPictureDelay());
+        }
     }
 
     private void takePictureWithDelay(long delay){
+        final DecodeBatchToken batchToken = mBatchToken;
         Handler h = new Handler();
         Runnable delayed = new Runnable() {
             @Override
             public void run() {
+                // Skip the rest of the burst once the batch has its result
+                if (batchToken.isFinished()) {
+                    stopCapturingPictures();
+                    return;
+                }
                 mCameraManager.takePicture(mCallback);
             }
         };
         h.postDelayed(delayed, delay);
     }
 
+    private synchronized void stopCapturingPictures() {
+        mCapturingPictures = false;
+        if (mFinishedThreadCount == mStartedThreadCount) {
+            finishBatch();
+        }
+    }
+
+    private void startPreviewFrameDecode() {
+        Point previewSize = mCameraManager.getCameraRes();
+        mPreviewFrameRegion = ImagePreProcessor.getFrameRegionInPreviewFrame(mCameraManager.getFramingRect(),
+                mCameraManager.getScreenRes(), previewSize, mCameraManager.getImageRotation());
+        mPreviewFrameWidth = previewSize.x;
+        mFrameQualityGate.startBatch();
+
+        mStreamingPreviewFrames = true;
+        mCameraManager.startPreviewFrames(mPreviewCallback, DecodeExecutor.THREAD_COUNT);
+        mHandler.postDelayed(mPreviewScanTimeout, PREVIEW_SCAN_TIMEOUT);
+    }
+
+    private boolean isFrameWorthDecoding(byte[] data) {
+        Rect region = mPreviewFrameRegion;
+
+        long gateStart = ScanTimings.begin(ScanTimings.QUALITY_GATE);
+        try {
+            return mFrameQualityGate.check(data, mPreviewFrameWidth, region.left, region.top,
+                    region.right, region.bottom) == FrameQualityGate.ACCEPTED;
+        } finally {
+            ScanTimings.end(ScanTimings.QUALITY_GATE, gateStart);
+        }
+    }
+
+    private void stopPreviewFrameDecode() {
+        mStreamingPreviewFrames = false;
+        mHandler.removeCallbacks(mPreviewScanTimeout);
+        mCameraManager.stopPreviewFrames();
+    }
+
     private void startAsyncTaskInParallel(PDF417DecodeAsyncTask task) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        mRunningTasks.add(task);
+        try {
+            task.executeOnExecutor(mDecodeExecutor);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Decode queue is full, dropping the frame", e);
+            reportRejectedTask(task);
+        }
+    }
+
+    // A preview frame the executor turned away counts as dropped, a picture counts as a failed
+    // attempt. Either way the batch still finishes
+    private synchronized void reportRejectedTask(PDF417DecodeAsyncTask task) {
+        if (!task.isPreviewFrame()) {
+            reportResult(task, false, null);
+            return;
+        }
+
+        mRunningTasks.remove(task);
+        if (mReleased) {
+            return;
+        }
+
+        mPreviewFramesInFlight--;
+        mCameraManager.dropPreviewFrame(task.getData(), mStreamingPreviewFrames);
+
+        if (!mStreamingPreviewFrames && mPreviewFramesInFlight == 0) {
+            finishBatch();
         }
-        else {
-            task.execute();
+    }
+
+    // Stops the other decodes in the batch once one of them has the result
+    private void cancelRunningTasks() {
+        for (PDF417DecodeAsyncTask task : mRunningTasks) {
+            task.cancel(true);
         }
     }
+
+    // Shuts down the decode threads, called when the scanner goes away
+    public synchronized void release() {
+        mReleased = true;
+        mBatchToken.finish();
+        cancelRunningTasks();
+        // Decodes that are already running still hand their buffers back to the pool as they unwind,
+        // so the pool is only cleared once the executor has drained, see the constructor
+        mDecodeExecutor.shutdownNow();
+    }
+
+    public JpegRegionDecoder getJpegRegionDecoder() {
+        return mJpegRegionDecoder;
+    }
+
+    // Belongs to the current batch, so tasks take it when they are created
+    public BarcodeFrameFuser getFrameFuser() {
+        return mFrameFuser;
+    }
+
+    public ImageBufferPool getImageBufferPool() {
+        return mImageBufferPool;
+    }
     
-    public synchronized void reportResult(boolean successful, String result) {
+    public synchronized void reportResult(PDF417DecodeAsyncTask task, boolean successful, String result) {
+        mRunningTasks.remove(task);
+
+        if (mReleased) {
+            return;
+        }
+
+        if (task.isPreviewFrame()) {
+            reportPreviewFrameResult(task, successful, result);
+            return;
+        }
+
         mFinishedThreadCount++;
+        mBurstDecodeNanos += task.getDecodeNanos();
         if (successful && !mSuccessfullyDecoded) {
             mSuccessfullyDecoded = true;
-            if (DEBUG_DECODE) {
-                mScanningsCurrentlyInSession = false;
-                // Shows scanned result to UI, only for testing barcode purposes
-                mScannerActivity.reportScannerBatchResponse(mSuccessfullyDecoded, result);
-            } else {
-                // Extract useful data, check validity of license, and cache data
-                new PDF417DataHandler(this).execute(result);
-            }
+            cancelRunningTasks();
+            handleDecodedResult(result);
         }
 
-        if (mFinishedThreadCount == MAX_THREAD_COUNT) {
+        if (!mCapturingPictures && mFinishedThreadCount == mStartedThreadCount) {
+            finishBatch();
+        }
+    }
 
-            if (!mSuccessfullyDecoded) {
-                mScannerActivity.reportScannerBatchResponse(false, null);
-            }
+    private void reportPreviewFrameResult(PDF417DecodeAsyncTask task, boolean successful, String result) {
+        mPreviewFramesInFlight--;
+        if (successful && !mSuccessfullyDecoded) {
+            mSuccessfullyDecoded = true;
+            stopPreviewFrameDecode();
+            cancelRunningTasks();
+            handleDecodedResult(result);
+        }
 
+        // Let the camera fill this buffer with the next frame if still scanning
+        mCameraManager.releasePreviewFrame(task.getData(), mStreamingPreviewFrames);
+
+        if (!mStreamingPreviewFrames && mPreviewFramesInFlight == 0) {
+            finishBatch();
+        }
+    }
+
+    private void handleDecodedResult(String result) {
+        // Otherwise the data was already handled on the decode thread
+        if (DEBUG_DECODE) {
             mScanningsCurrentlyInSession = false;
-            resetBatchState();
+            // Shows scanned result to UI, only for testing barcode purposes
+            mScannerActivity.reportScannerBatchResponse(mSuccessfullyDecoded, result);
+        }
+    }
+
+    // Called on the decode thread that won the batch, so the verdict doesn't have to wait for the
+    // result to go through the UI thread and back out to another background task
+    void handleDecodedData(String result) {
+        if (!DEBUG_DECODE) {
+            // Extract useful data, check validity of license, and cache data
+            new PDF417DataHandler(this).handle(result);
+        }
+    }
+
+    private void finishBatch() {
+        if (mBatchDecodesPreviewFrames) {
+            Log.d(TAG, String.valueOf(mCameraManager.getPreviewFrameRing()));
+            Log.d(TAG, String.valueOf(mFrameQualityGate));
+        } else if (mStartedThreadCount > 0) {
+            mBurstController.recordBurst(mBurstLightOn, mSuccessfullyDecoded, mStartedThreadCount,
+                    mBurstDecodeNanos / mStartedThreadCount / 1000000);
+            Log.d(TAG, String.valueOf(mBurstController));
         }
+        Log.d(TAG, String.valueOf(mImageBufferPool));
+
+        mBatchToken.finish();
+        boolean successfullyDecoded = mSuccessfullyDecoded;
+        mScanningsCurrentlyInSession = false;
+        resetBatchState();
+        setUploadsHeldBack(false);
+
+        // Reset first, the activity may start the next batch straight away
+        if (!successfullyDecoded) {
+            ScanTimings.record(ScanTimings.SCAN, mScanStartNanos);
+            mScannerActivity.reportScannerBatchResponse(false, null);
+        }
+    }
+
+    // Safe to call from any thread, the verdict is shown on the UI thread
+    void postIDValidity(final boolean valid) {
+        ScanTimings.record(ScanTimings.SCAN, mScanStartNanos);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reportIDValidity(valid);
+            }
+        });
     }
 
     public synchronized void reportIDValidity(boolean valid) {
+        if (mReleased) {
+            return;
+        }
+
         mScanningsCurrentlyInSession = false;
         mScannerActivity.reportIDValidity(valid);
     }
 
+    // Uploads wait while a batch is decoding so they don't compete with it for the CPU or network
+    private void setUploadsHeldBack(boolean heldBack) {
+        UploadScheduler uploadScheduler = mFileManager.getUploadScheduler();
+
+        if (uploadScheduler == null) {
+            return;
+        }
+
+        if (heldBack) {
+            uploadScheduler.onScanStarted();
+        } else {
+            uploadScheduler.onScanFinished();
+        }
+    }
+
     private void resetBatchState(){
         mSuccessfullyDecoded = false;
         mFinishedThreadCount = 0;
         mStartedThreadCount = 0;
+        mBurstDecodeNanos = 0;
+        mPreviewFramesInFlight = 0;
     }
 
     public void storeData(JSONObject object){
         mFileManager.getSharedPrefs().storeData(object);
     }
-
-    public void sendHTTPRequest(JSONObject jsonObject) {
-        mHTTPHelper.sendScanData(jsonObject);
-    }
 }
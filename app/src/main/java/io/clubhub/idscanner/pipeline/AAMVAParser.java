@@ -0,0 +1,101 @@
+package io.clubhub.idscanner.pipeline;
+
+// Reads the AAMVA payload in a single pass. The IIN in the header picks the jurisdiction profile,
+// then each line's 3 character element ID goes through that profile's perfect hash table, so the
+// cost per line stays the same however many jurisdictions and element IDs are known
+public class AAMVAParser implements IDFieldExtractor {
+    // The file type comes right before the IIN, "AAMVA" on cards from before the 2000 standard
+    private static final String[] FILE_TYPES = {"ANSI ", "AAMVA"};
+    private static final int IIN_LENGTH = 6;
+    // The header is fixed length, the IIN is never further in than this
+    private static final int HEADER_SEARCH_LENGTH = 32;
+
+    private final JurisdictionTable mJurisdictions;
+
+    public AAMVAParser(JurisdictionTable jurisdictions) {
+        mJurisdictions = jurisdictions;
+    }
+
+    @Override
+    public void extract(CharSequence payload, IDRecord record, FieldListener listener) {
+        JurisdictionProfile profile = mJurisdictions.getProfile(readIIN(payload));
+        record.reset(payload, profile);
+        int length = payload.length();
+        int lineStart = 0;
+
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && !isLineBreak(payload.charAt(lineEnd))) {
+                lineEnd++;
+            }
+
+            // Same as trimming the line, without making a copy of it
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && payload.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && payload.charAt(end - 1) <= ' ') {
+                end--;
+            }
+
+            if (end - start > JurisdictionProfile.ELEMENT_ID_LENGTH) {
+                int field = profile.getField(payload, start);
+
+                if (field >= 0) {
+                    if (field == IDRecord.LAST_NAME && profile.dropsTrailingCommaOnLastName()
+                            && payload.charAt(end - 1) == ',') {
+                        end--;
+                    }
+                    record.set(field, start + JurisdictionProfile.ELEMENT_ID_LENGTH, end);
+
+                    if (!listener.onField(record, field)) {
+                        return;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    // Returns -1 when there is no header, or no IIN in it
+    private static int readIIN(CharSequence payload) {
+        int searchEnd = Math.min(payload.length(), HEADER_SEARCH_LENGTH);
+
+        for (String fileType : FILE_TYPES) {
+            int typeLength = fileType.length();
+
+            for (int i = 0; i + typeLength + IIN_LENGTH <= searchEnd; i++) {
+                if (regionMatches(payload, i, fileType)) {
+                    return readDigits(payload, i + typeLength, IIN_LENGTH);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, String match) {
+        for (int i = 0; i < match.length(); i++) {
+            if (text.charAt(start + i) != match.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readDigits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+}
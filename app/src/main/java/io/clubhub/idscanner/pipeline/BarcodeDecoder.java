@@ -0,0 +1,10 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import com.google.zxing.LuminanceSource;
+
+// Turns the located barcode into its text. Returns null when it can't be read
+public interface BarcodeDecoder {
+    String decode(LuminanceSource source, DecodeBatchToken batchToken);
+}
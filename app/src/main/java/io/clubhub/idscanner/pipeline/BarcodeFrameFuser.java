@@ -0,0 +1,153 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.pdf417.detector.Detector;
+import com.google.zxing.pdf417.detector.PDF417DetectorResult;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Merges the frames of a batch that failed to decode on their own into one barcode image to decode
+// again. Zxing keeps its per-frame codeword matrices to itself, so the merge happens on the image: each
+// frame's barcode is found with zxing's PDF417 detector and its binarised modules are mapped from the
+// detected outer corners of the start and stop patterns onto one grid, where every module takes the
+// majority of the frames. Rows a glare spot, worn patch or blur hides in some frames are outvoted by
+// the others. Shared by every decode thread in the batch
+public class BarcodeFrameFuser {
+    // Fewer frames than this and the majority can't outvote a bad one
+    private static final int MIN_FRAMES = 3;
+    // Frames after this still decode alone, they just stop voting
+    private static final int MAX_FRAMES = 15;
+    // A barcode whose shape is this far off the first one was detected on something else
+    private static final double MAX_ASPECT_RATIO_DIFFERENCE = 0.25;
+    // Zxing's detector needs a white margin around the start and stop patterns
+    private static final int MIN_QUIET_ZONE = 16;
+    private static final byte BLACK = 0;
+    private static final byte WHITE = (byte) 255;
+
+    // How many frames had each module of the grid black
+    private byte[] mBlackVotes;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameCount;
+
+    // Returns the merged barcode of this frame and the failed ones before it, or null if it couldn't be
+    // aligned or there aren't enough frames yet
+    public LuminanceSource addFailedFrame(LuminanceSource frame, DecodeBatchToken batchToken) {
+        BitMatrix bits;
+        ResultPoint[] corners;
+        try {
+            PDF417DetectorResult detected = Detector.detect(new BinaryBitmap(new HybridBinarizer(frame)),
+                    null, false);
+            corners = getOuterCorners(detected.getPoints());
+            bits = detected.getBits();
+        } catch (NotFoundException e) {
+            return null;
+        }
+
+        // Without both patterns there is nothing to line the frame up by
+        if (corners == null) {
+            return null;
+        }
+        batchToken.checkpoint();
+
+        synchronized (this) {
+            if (!vote(bits, corners) || mFrameCount < MIN_FRAMES) {
+                return null;
+            }
+            return createFusedImage();
+        }
+    }
+
+    // Top left, bottom left, top right and bottom right, the order zxing gives them in
+    private static ResultPoint[] getOuterCorners(List<ResultPoint[]> barcodes) {
+        if (barcodes.isEmpty()) {
+            return null;
+        }
+
+        ResultPoint[] points = barcodes.get(0);
+        for (int i = 0; i < 4; i++) {
+            if (points[i] == null) {
+                return null;
+            }
+        }
+        return new ResultPoint[] {points[0], points[1], points[2], points[3]};
+    }
+
+    private boolean vote(BitMatrix bits, ResultPoint[] corners) {
+        int width = (int) Math.round(Math.max(ResultPoint.distance(corners[0], corners[2]),
+                ResultPoint.distance(corners[1], corners[3])));
+        int height = (int) Math.round(Math.max(ResultPoint.distance(corners[0], corners[1]),
+                ResultPoint.distance(corners[2], corners[3]))) + 1;
+
+        if (mFrameCount == 0) {
+            // The first frame sets the grid, the others are stretched onto it
+            mWidth = width;
+            mHeight = height;
+            mBlackVotes = new byte[width * height];
+        } else if (mFrameCount == MAX_FRAMES) {
+            return false;
+        } else {
+            double aspectRatio = (double) width / height;
+            double gridAspectRatio = (double) mWidth / mHeight;
+            if (Math.abs(aspectRatio - gridAspectRatio) > gridAspectRatio * MAX_ASPECT_RATIO_DIFFERENCE) {
+                return false;
+            }
+        }
+
+        // Each grid row runs between the points that far down the left and right edges, so a frame
+        // seen at a slight angle still lines up module for module
+        for (int y = 0; y < mHeight; y++) {
+            float t = (y + 0.5f) / mHeight;
+            float leftX = interpolate(corners[0].getX(), corners[1].getX(), t);
+            float leftY = interpolate(corners[0].getY(), corners[1].getY(), t);
+            float rightX = interpolate(corners[2].getX(), corners[3].getX(), t);
+            float rightY = interpolate(corners[2].getY(), corners[3].getY(), t);
+            int rowOffset = y * mWidth;
+
+            for (int x = 0; x < mWidth; x++) {
+                float s = (x + 0.5f) / mWidth;
+                int sourceX = (int) interpolate(leftX, rightX, s);
+                int sourceY = (int) interpolate(leftY, rightY, s);
+                if (sourceX >= 0 && sourceY >= 0 && sourceX < bits.getWidth() && sourceY < bits.getHeight()
+                        && bits.get(sourceX, sourceY)) {
+                    mBlackVotes[rowOffset + x]++;
+                }
+            }
+        }
+
+        mFrameCount++;
+        return true;
+    }
+
+    private static float interpolate(float from, float to, float fraction) {
+        return from + (to - from) * fraction;
+    }
+
+    // A tie goes to black, glare and wear both turn black modules white rather than the other way round
+    private LuminanceSource createFusedImage() {
+        int quietZone = Math.max(MIN_QUIET_ZONE, mWidth / 20);
+        int width = mWidth + 2 * quietZone;
+        int height = mHeight + 2 * quietZone;
+        byte[] fused = new byte[width * height];
+        Arrays.fill(fused, WHITE);
+
+        for (int y = 0; y < mHeight; y++) {
+            int rowOffset = y * mWidth;
+            int fusedOffset = (y + quietZone) * width + quietZone;
+            for (int x = 0; x < mWidth; x++) {
+                if (mBlackVotes[rowOffset + x] * 2 >= mFrameCount) {
+                    fused[fusedOffset + x] = BLACK;
+                }
+            }
+        }
+        return new NV21LuminanceSource(fused, width, height, 0, 0, width, height);
+    }
+}
@@ -0,0 +1,12 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+// Finds the barcode in a greyscale image. Returns its rect in the image's coordinates, or null
+// when nothing that looks like a barcode is there
+public interface BarcodeLocaliser {
+    Rect locate(Mat grey, DecodeBatchToken batchToken, MatAllocator allocator);
+}
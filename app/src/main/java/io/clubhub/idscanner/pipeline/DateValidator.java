@@ -0,0 +1,102 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.util.Calendar;
+
+// Checks ID dates as packed yyyyMMdd ints, e.g. 19900115. Packed dates compare in date order and
+// (today - birth) / 10000 is the age in whole years, so no Calendar is needed per scan. Today is
+// worked out once and only again after midnight
+public class DateValidator {
+    public static final int INVALID_DATE = -1;
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    private int mToday;
+    private long mNextMidnightMillis;
+
+    // Packed date for the current day, only touches the calendar once a day
+    public synchronized int getToday() {
+        long now = System.currentTimeMillis();
+
+        if (now >= mNextMidnightMillis) {
+            mCalendar.setTimeInMillis(now);
+            mToday = pack(mCalendar.get(Calendar.YEAR), mCalendar.get(Calendar.MONTH) + 1,
+                    mCalendar.get(Calendar.DAY_OF_MONTH));
+
+            mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+            mCalendar.set(Calendar.MINUTE, 0);
+            mCalendar.set(Calendar.SECOND, 0);
+            mCalendar.set(Calendar.MILLISECOND, 0);
+            mCalendar.add(Calendar.DAY_OF_MONTH, 1);
+            mNextMidnightMillis = mCalendar.getTimeInMillis();
+        }
+        return mToday;
+    }
+
+    // Over age and not expired, anything that isn't a real date fails
+    public boolean isValid(int birthDate, int expiryDate, int minimumAge) {
+        if (birthDate == INVALID_DATE || expiryDate == INVALID_DATE) {
+            return false;
+        }
+
+        int today = getToday();
+        // The card stops being valid on the expiry date itself
+        return expiryDate > today && getAge(birthDate, today) >= minimumAge;
+    }
+
+    // Whole years between the two packed dates, the birthday itself counts
+    public static int getAge(int birthDate, int today) {
+        return (today - birthDate) / 10000;
+    }
+
+    // Reads a date field in the record's jurisdiction format, INVALID_DATE if it isn't one
+    public static int readDate(IDRecord record, int field) {
+        JurisdictionProfile profile = record.getProfile();
+        if (!record.has(field) || record.length(field) != profile.getDateLength()) {
+            return INVALID_DATE;
+        }
+
+        int year = readNumber(record, field, profile.getYearOffset(), 4);
+        int month = readNumber(record, field, profile.getMonthOffset(), 2);
+        int day = readNumber(record, field, profile.getDayOffset(), 2);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]) {
+            return INVALID_DATE;
+        }
+        // Only a leap year has a 29th of February
+        if (month == 2 && day == 29 && !isLeapYear(year)) {
+            return INVALID_DATE;
+        }
+        return pack(year, month, day);
+    }
+
+    // How dates are stored and sent whatever the card's own format, yyyyMMdd
+    public static String format(int packedDate) {
+        char[] digits = new char[8];
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + packedDate % 10);
+            packedDate /= 10;
+        }
+        return new String(digits);
+    }
+
+    private static int readNumber(IDRecord record, int field, int offset, int digits) {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            char c = record.charAt(field, i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int pack(int year, int month, int day) {
+        return year * 10000 + month * 100 + day;
+    }
+}
@@ -0,0 +1,133 @@
+package io.clubhub.idscanner.pipeline;
+
+// Cheap check of a greyscale frame before it is worth decoding. Sharpness is the variance of the
+// Laplacian and glare is the share of blown out pixels, both over a grid that only samples every
+// SAMPLE_STEP pixels of the region, so a whole framing rect takes well under a couple of ms.
+// Keeps state between frames, use one gate per frame source
+public class FrameQualityGate {
+    public static final int ACCEPTED = 0;
+    public static final int REJECTED_BLURRY = 1;
+    public static final int REJECTED_GLARE = 2;
+
+    private static final int SAMPLE_STEP = 4;
+    // The thresholds below are unmeasured starting values. A Laplacian variance of 60 is a standard
+    // deviation under 8 grey levels, far below what sharp bars swinging between black and white give, and
+    // a fifth of the region blown out is enough to wash out a good part of the barcode. They are kept
+    // loose so a wrong call costs a wasted decode rather than a good frame, and the release below caps
+    // the cost of one that is too strict. FrameQualityGateBenchmark prints every corpus image's scores
+    // next to whether it decodes, calibrate them from that
+    // The Laplacian is taken across neighbouring samples, so it sees edges at the sampled scale
+    private static final double MIN_LAPLACIAN_VARIANCE = 60;
+    private static final int SATURATED_LUMINANCE = 250;
+    private static final double MAX_SATURATED_RATIO = 0.2;
+    // Lets a frame through anyway after this many rejections in a row, so a gate that is too strict for
+    // some phone or lighting only slows scans down instead of stopping them. Five frames is a sixth of a
+    // second of a 30fps preview
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 5;
+
+    private double mLastLaplacianVariance;
+    private double mLastSaturatedRatio;
+    private int mConsecutiveRejections;
+
+    private long mFramesAccepted;
+    private long mFramesRejectedBlurry;
+    private long mFramesRejectedGlare;
+
+    // The region is inclusive of left and top, exclusive of right and bottom, in pixels of the luminance
+    // plane whose rows are dataWidth bytes long. Nothing is allocated
+    public int check(byte[] luminance, int dataWidth, int left, int top, int right, int bottom) {
+        int result = score(luminance, dataWidth, left, top, right, bottom);
+
+        if (result != ACCEPTED && ++mConsecutiveRejections <= MAX_CONSECUTIVE_REJECTIONS) {
+            if (result == REJECTED_BLURRY) {
+                mFramesRejectedBlurry++;
+            } else {
+                mFramesRejectedGlare++;
+            }
+            return result;
+        }
+
+        mConsecutiveRejections = 0;
+        mFramesAccepted++;
+        return ACCEPTED;
+    }
+
+    // Called when a new scan starts, rejections from the last one don't bring this one's release forward
+    public void startBatch() {
+        mConsecutiveRejections = 0;
+    }
+
+    private int score(byte[] luminance, int dataWidth, int left, int top, int right, int bottom) {
+        int rowStep = dataWidth * SAMPLE_STEP;
+        long sum = 0;
+        long sumOfSquares = 0;
+        int laplacianCount = 0;
+        int saturatedCount = 0;
+        int sampleCount = 0;
+
+        // The outer ring of samples only counts towards glare, the Laplacian needs all four neighbours
+        for (int y = top; y < bottom; y += SAMPLE_STEP) {
+            int rowOffset = y * dataWidth;
+            boolean innerRow = y - SAMPLE_STEP >= top && y + SAMPLE_STEP < bottom;
+
+            for (int x = left; x < right; x += SAMPLE_STEP) {
+                int index = rowOffset + x;
+                int centre = luminance[index] & 0xFF;
+                sampleCount++;
+
+                if (centre >= SATURATED_LUMINANCE) {
+                    saturatedCount++;
+                }
+
+                if (innerRow && x - SAMPLE_STEP >= left && x + SAMPLE_STEP < right) {
+                    int laplacian = 4 * centre
+                            - (luminance[index - SAMPLE_STEP] & 0xFF)
+                            - (luminance[index + SAMPLE_STEP] & 0xFF)
+                            - (luminance[index - rowStep] & 0xFF)
+                            - (luminance[index + rowStep] & 0xFF);
+                    sum += laplacian;
+                    sumOfSquares += laplacian * laplacian;
+                    laplacianCount++;
+                }
+            }
+        }
+
+        if (sampleCount == 0 || laplacianCount == 0) {
+            mLastLaplacianVariance = 0;
+            mLastSaturatedRatio = 0;
+            return ACCEPTED;
+        }
+
+        double mean = (double) sum / laplacianCount;
+        mLastLaplacianVariance = (double) sumOfSquares / laplacianCount - mean * mean;
+        mLastSaturatedRatio = (double) saturatedCount / sampleCount;
+
+        // Glare first, a washed out frame can still have sharp edges around the hot spot
+        if (mLastSaturatedRatio > MAX_SATURATED_RATIO) {
+            return REJECTED_GLARE;
+        }
+        return mLastLaplacianVariance < MIN_LAPLACIAN_VARIANCE ? REJECTED_BLURRY : ACCEPTED;
+    }
+
+    public double getLastLaplacianVariance() {
+        return mLastLaplacianVariance;
+    }
+
+    public double getLastSaturatedRatio() {
+        return mLastSaturatedRatio;
+    }
+
+    public long getFramesRejectedBlurry() {
+        return mFramesRejectedBlurry;
+    }
+
+    public long getFramesRejectedGlare() {
+        return mFramesRejectedGlare;
+    }
+
+    @Override
+    public String toString() {
+        return "Frames passed quality gate: " + mFramesAccepted + ", rejected blurry: " + mFramesRejectedBlurry
+                + ", rejected glare: " + mFramesRejectedGlare;
+    }
+}
@@ -0,0 +1,12 @@
+package io.clubhub.idscanner.pipeline;
+
+// Pulls the fields we care about out of the decoded barcode text into a record
+public interface IDFieldExtractor {
+
+    // Told about every field as soon as it is in the record, returning false stops the extraction there
+    interface FieldListener {
+        boolean onField(IDRecord record, int field);
+    }
+
+    void extract(CharSequence payload, IDRecord record, FieldListener listener);
+}
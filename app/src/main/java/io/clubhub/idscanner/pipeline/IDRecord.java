@@ -0,0 +1,89 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.IDDictionary;
+
+// The fields read off an ID. Values are kept as offsets into the decoded barcode text, so nothing
+// is copied until a field is actually asked for as a String
+public class IDRecord {
+    public static final int ID_EXPIRY_DATE = 0;
+    public static final int LAST_NAME = 1;
+    public static final int FIRST_NAME = 2;
+    public static final int BIRTH_DATE = 3;
+    public static final int GENDER = 4;
+    public static final int ID = 5;
+    public static final int FIELD_COUNT = 6;
+
+    // Key each field is stored and sent under, indexed by field
+    private static final String[] KEYS = {
+            IDDictionary.ID_EXPIRY_DATE_KEY,
+            IDDictionary.LAST_NAME_KEY,
+            IDDictionary.FIRST_NAME_KEY,
+            IDDictionary.BIRTH_DATE_KEY,
+            IDDictionary.GENDER_KEY,
+            IDDictionary.ID_KEY
+    };
+
+    // Names the fields go by in the jurisdiction profile file
+    private static final String[] NAMES = {
+            "ID_EXPIRY_DATE", "LAST_NAME", "FIRST_NAME", "BIRTH_DATE", "GENDER", "ID"
+    };
+
+    private static final int ALL_FIELDS = (1 << FIELD_COUNT) - 1;
+
+    private CharSequence mSource;
+    private JurisdictionProfile mProfile;
+    private final int[] mStart = new int[FIELD_COUNT];
+    private final int[] mEnd = new int[FIELD_COUNT];
+    private int mFieldsSet;
+
+    public static String getKey(int field) {
+        return KEYS[field];
+    }
+
+    // Returns -1 for names that aren't one of the record's fields
+    public static int getFieldByName(String name) {
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if (NAMES[field].equals(name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    public void reset(CharSequence source, JurisdictionProfile profile) {
+        mSource = source;
+        mProfile = profile;
+        mFieldsSet = 0;
+    }
+
+    // The profile the record was read with, it says how the dates are written
+    public JurisdictionProfile getProfile() {
+        return mProfile;
+    }
+
+    void set(int field, int start, int end) {
+        mStart[field] = start;
+        mEnd[field] = end;
+        mFieldsSet |= 1 << field;
+    }
+
+    public boolean has(int field) {
+        return (mFieldsSet & (1 << field)) != 0;
+    }
+
+    public boolean hasAll() {
+        return mFieldsSet == ALL_FIELDS;
+    }
+
+    public int length(int field) {
+        return has(field) ? mEnd[field] - mStart[field] : 0;
+    }
+
+    public char charAt(int field, int index) {
+        return mSource.charAt(mStart[field] + index);
+    }
+
+    public String getString(int field) {
+        return has(field) ? mSource.subSequence(mStart[field], mEnd[field]).toString() : null;
+    }
+}
@@ -0,0 +1,109 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.util.Map;
+
+// How one jurisdiction lays out its barcode: which element IDs hold each field, how dates are
+// written and any quirks. The element IDs are compiled into a perfect hash table
+public final class JurisdictionProfile {
+    public static final String QUIRK_TRAILING_COMMA_LAST_NAME = "trailing_comma_last_name";
+
+    // Element IDs are upper case letters and digits, read as a 3 digit base 36 number
+    static final int ELEMENT_ID_LENGTH = 3;
+    private static final int RADIX = 36;
+    private static final int NO_FIELD = -1;
+
+    private final String mName;
+    private final String mDateFormat;
+    // Where each part of a date sits in the field, worked out from the date format
+    private final int mYearOffset;
+    private final int mMonthOffset;
+    private final int mDayOffset;
+    private final boolean mTrailingCommaLastName;
+    private final PerfectHashTable mElements;
+
+    // elementFields maps each element ID to the IDRecord field it is read into
+    public JurisdictionProfile(String name, String dateFormat, Map<String, Integer> elementFields,
+                               boolean trailingCommaLastName) {
+        mName = name;
+        mDateFormat = dateFormat;
+        mYearOffset = dateFormat.indexOf("yyyy");
+        mMonthOffset = dateFormat.indexOf("MM");
+        mDayOffset = dateFormat.indexOf("dd");
+
+        if (dateFormat.length() != 8 || mYearOffset < 0 || mMonthOffset < 0 || mDayOffset < 0) {
+            throw new IllegalArgumentException("Unsupported date format in " + name + ": " + dateFormat);
+        }
+        mTrailingCommaLastName = trailingCommaLastName;
+
+        int[] codes = new int[elementFields.size()];
+        int[] fields = new int[elementFields.size()];
+        int i = 0;
+
+        for (Map.Entry<String, Integer> entry : elementFields.entrySet()) {
+            String elementId = entry.getKey();
+            codes[i] = elementId.length() == ELEMENT_ID_LENGTH ? getElementCode(elementId, 0) : -1;
+            if (codes[i] < 0) {
+                throw new IllegalArgumentException("Bad element ID in " + name + ": " + elementId);
+            }
+            fields[i] = entry.getValue();
+            i++;
+        }
+        mElements = new PerfectHashTable(codes, fields);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getDateFormat() {
+        return mDateFormat;
+    }
+
+    public int getDateLength() {
+        return mDateFormat.length();
+    }
+
+    public int getYearOffset() {
+        return mYearOffset;
+    }
+
+    public int getMonthOffset() {
+        return mMonthOffset;
+    }
+
+    public int getDayOffset() {
+        return mDayOffset;
+    }
+
+    public boolean dropsTrailingCommaOnLastName() {
+        return mTrailingCommaLastName;
+    }
+
+    // Returns the field for the element ID at text[start], or -1 if it isn't one we read
+    public int getField(CharSequence text, int start) {
+        int code = getElementCode(text, start);
+        return code < 0 ? NO_FIELD : mElements.get(code, NO_FIELD);
+    }
+
+    static int getElementCode(CharSequence text, int start) {
+        int code = 0;
+        for (int i = start; i < start + ELEMENT_ID_LENGTH; i++) {
+            char c = text.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 10;
+            } else {
+                return -1;
+            }
+            code = code * RADIX + digit;
+        }
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,222 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every known jurisdiction profile, looked up by the IIN in the barcode header through a perfect
+// hash table. Built once at startup from the bundled profile file (res/raw/jurisdictions)
+public final class JurisdictionTable {
+    private static final int NO_PROFILE = -1;
+
+    private final List<JurisdictionProfile> mProfiles;
+    private final PerfectHashTable mProfileByIIN;
+    private final JurisdictionProfile mDefaultProfile;
+
+    public JurisdictionTable(List<JurisdictionProfile> profiles, int[] iins, int[] profileIndices,
+                             JurisdictionProfile defaultProfile) {
+        mProfiles = new ArrayList<>(profiles);
+        mProfileByIIN = new PerfectHashTable(iins, profileIndices);
+        mDefaultProfile = defaultProfile;
+    }
+
+    // Falls back to the default profile for IINs we have no profile for
+    public JurisdictionProfile getProfile(int iin) {
+        int index = iin < 0 ? NO_PROFILE : mProfileByIIN.get(iin, NO_PROFILE);
+        return index == NO_PROFILE ? mDefaultProfile : mProfiles.get(index);
+    }
+
+    public JurisdictionProfile getDefaultProfile() {
+        return mDefaultProfile;
+    }
+
+    public static JurisdictionTable parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return new Parser().parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Reads the profile file, see the top of res/raw/jurisdictions for the format
+    private static final class Parser {
+        private final Map<String, ProfileSpec> mSpecs = new LinkedHashMap<>();
+        private final Map<Integer, String> mIINs = new LinkedHashMap<>();
+        private String mDefaultName;
+
+        JurisdictionTable parse(BufferedReader reader) throws IOException {
+            ProfileSpec current = null;
+            String line;
+            int lineNumber = 0;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] words = line.split("\\s+");
+                String directive = words[0];
+
+                if (directive.equals("profile")) {
+                    current = startProfile(words, lineNumber);
+                } else if (directive.equals("default")) {
+                    requireWords(words, 2, lineNumber);
+                    mDefaultName = words[1];
+                } else if (current == null) {
+                    throw error("Expected a profile first", lineNumber);
+                } else if (directive.equals("date")) {
+                    requireWords(words, 2, lineNumber);
+                    current.mDateFormat = words[1];
+                } else if (directive.equals("field")) {
+                    addField(current, words, lineNumber);
+                } else if (directive.equals("quirk")) {
+                    requireWords(words, 2, lineNumber);
+                    current.mQuirks.add(words[1]);
+                } else if (directive.equals("iin")) {
+                    addIINs(current, words, lineNumber);
+                } else {
+                    throw error("Unknown directive " + directive, lineNumber);
+                }
+            }
+            return build();
+        }
+
+        private ProfileSpec startProfile(String[] words, int lineNumber) throws IOException {
+            requireWords(words, 2, lineNumber);
+            ProfileSpec spec;
+
+            if (words.length == 4 && words[2].equals("extends")) {
+                ProfileSpec parent = mSpecs.get(words[3]);
+                if (parent == null) {
+                    throw error("Unknown parent profile " + words[3], lineNumber);
+                }
+                spec = new ProfileSpec(words[1], parent);
+            } else if (words.length == 2) {
+                spec = new ProfileSpec(words[1], null);
+            } else {
+                throw error("Expected profile <name> [extends <parent>]", lineNumber);
+            }
+
+            if (mSpecs.put(spec.mName, spec) != null) {
+                throw error("Profile " + spec.mName + " defined twice", lineNumber);
+            }
+            return spec;
+        }
+
+        private void addField(ProfileSpec spec, String[] words, int lineNumber) throws IOException {
+            requireWords(words, 3, lineNumber);
+            int field = IDRecord.getFieldByName(words[1]);
+            if (field < 0) {
+                throw error("Unknown field " + words[1], lineNumber);
+            }
+
+            // A field line replaces whatever the parent had for that field
+            List<String> elementIDs = new ArrayList<>();
+            for (int i = 2; i < words.length; i++) {
+                elementIDs.add(words[i]);
+            }
+            spec.mElementIDs.set(field, elementIDs);
+        }
+
+        private void addIINs(ProfileSpec spec, String[] words, int lineNumber) throws IOException {
+            for (int i = 1; i < words.length; i++) {
+                int iin;
+                try {
+                    iin = Integer.parseInt(words[i]);
+                } catch (NumberFormatException e) {
+                    throw error("Bad IIN " + words[i], lineNumber);
+                }
+
+                if (mIINs.put(iin, spec.mName) != null) {
+                    throw error("IIN " + iin + " belongs to more than one profile", lineNumber);
+                }
+            }
+        }
+
+        private JurisdictionTable build() throws IOException {
+            List<JurisdictionProfile> profiles = new ArrayList<>();
+            Map<String, Integer> indices = new HashMap<>();
+
+            for (ProfileSpec spec : mSpecs.values()) {
+                indices.put(spec.mName, profiles.size());
+                profiles.add(spec.compile());
+            }
+
+            Integer defaultIndex = mDefaultName == null ? null : indices.get(mDefaultName);
+            if (defaultIndex == null) {
+                throw new IOException("Missing or unknown default profile: " + mDefaultName);
+            }
+
+            int[] iins = new int[mIINs.size()];
+            int[] profileIndices = new int[mIINs.size()];
+            int i = 0;
+            for (Map.Entry<Integer, String> entry : mIINs.entrySet()) {
+                iins[i] = entry.getKey();
+                profileIndices[i] = indices.get(entry.getValue());
+                i++;
+            }
+
+            return new JurisdictionTable(profiles, iins, profileIndices, profiles.get(defaultIndex));
+        }
+
+        private static void requireWords(String[] words, int count, int lineNumber) throws IOException {
+            if (words.length < count) {
+                throw error("Expected at least " + count + " words", lineNumber);
+            }
+        }
+
+        private static IOException error(String message, int lineNumber) {
+            return new IOException("Jurisdiction profiles line " + lineNumber + ": " + message);
+        }
+    }
+
+    private static final class ProfileSpec {
+        final String mName;
+        String mDateFormat;
+        final List<String> mQuirks = new ArrayList<>();
+        // Indexed by field, null for fields the profile doesn't read
+        final List<List<String>> mElementIDs;
+
+        ProfileSpec(String name, ProfileSpec parent) {
+            mName = name;
+            if (parent != null) {
+                mDateFormat = parent.mDateFormat;
+                mQuirks.addAll(parent.mQuirks);
+                mElementIDs = new ArrayList<>(parent.mElementIDs);
+            } else {
+                mElementIDs = new ArrayList<>(Collections.<List<String>>nCopies(IDRecord.FIELD_COUNT, null));
+            }
+        }
+
+        JurisdictionProfile compile() throws IOException {
+            if (mDateFormat == null) {
+                throw new IOException("Profile " + mName + " has no date format");
+            }
+
+            Map<String, Integer> elementFields = new LinkedHashMap<>();
+            for (int field = 0; field < IDRecord.FIELD_COUNT; field++) {
+                if (mElementIDs.get(field) == null) {
+                    continue;
+                }
+                for (String elementId : mElementIDs.get(field)) {
+                    if (elementFields.put(elementId, field) != null) {
+                        throw new IOException("Profile " + mName + " reads " + elementId + " into two fields");
+                    }
+                }
+            }
+
+            return new JurisdictionProfile(mName, mDateFormat, elementFields,
+                    mQuirks.contains(JurisdictionProfile.QUIRK_TRAILING_COMMA_LAST_NAME));
+        }
+    }
+}
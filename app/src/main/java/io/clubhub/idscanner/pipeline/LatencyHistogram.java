@@ -0,0 +1,105 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed size histogram of durations, recorded in microseconds into log-linear buckets: every power of two
+// is split into SUB_BUCKETS equal parts, so a percentile is off by at most 1/SUB_BUCKETS of its value.
+// Recording is a few shifts and an atomic increment, nothing is allocated and no lock is taken, so it is
+// safe to call from every decode thread at once
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Anything from 2^(MAX_MAGNITUDE + 1) us (about 36 minutes) up lands in the overflow bucket after
+    // the regular ones, its percentiles are reported as the max
+    private static final int MAX_MAGNITUDE = 30;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    static final int OVERFLOW_BUCKET = BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT + 1);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+
+        mCounts.incrementAndGet(getBucket(micros));
+        mTotalCount.incrementAndGet();
+        mTotalMicros.addAndGet(micros);
+
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return OVERFLOW_BUCKET;
+        }
+
+        // The top bit is implied by the magnitude, the next SUB_BUCKET_BITS pick the sub bucket
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls in the bucket
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : mTotalMicros.get() / count;
+    }
+
+    // percentile is between 0 and 100. Reads the buckets while they may still be recorded into, so the
+    // answer can be off by the few values that came in during the walk
+    public long getPercentileMicros(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max((long) Math.ceil(count * percentile / 100d), 1);
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts.get(bucket);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(bucket), mMaxMicros.get());
+            }
+        }
+        // Only the overflow bucket is left, which has no upper bound of its own
+        return mMaxMicros.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket <= OVERFLOW_BUCKET; bucket++) {
+            mCounts.set(bucket, 0);
+        }
+        mTotalCount.set(0);
+        mTotalMicros.set(0);
+        mMaxMicros.set(0);
+    }
+}
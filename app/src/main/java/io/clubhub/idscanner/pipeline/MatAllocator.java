@@ -0,0 +1,16 @@
+package io.clubhub.idscanner.pipeline;
+
+import org.opencv.core.Mat;
+
+// Where the pipeline stages get their scratch mats and byte arrays from. On the device this is the
+// session pool, off the device it can just allocate and free
+public interface MatAllocator {
+    Mat acquireMat(int rows, int cols, int type);
+
+    void releaseMat(Mat mat);
+
+    // Scratch for copying pixels in and out of mats, always exactly length bytes long
+    byte[] acquireBytes(int length);
+
+    void releaseBytes(byte[] bytes);
+}
@@ -0,0 +1,119 @@
+package io.clubhub.idscanner.pipeline;
+
+import com.google.zxing.LuminanceSource;
+
+// Reads luminance straight out of the Y plane of an NV21 camera buffer, limited to a region of it.
+// A plain 8-bit greyscale buffer has the same layout, so it works for those as well. For sensors
+// mounted upside down the region is read back to front, which turns it 180 degrees without a copy
+public final class NV21LuminanceSource extends LuminanceSource {
+    private final byte[] mYuvData;
+    private final int mDataWidth;
+    private final int mDataHeight;
+    private final int mLeft;
+    private final int mTop;
+    private final boolean mUpsideDown;
+
+    public NV21LuminanceSource(byte[] yuvData, int dataWidth, int dataHeight, int left, int top,
+                               int width, int height) {
+        this(yuvData, dataWidth, dataHeight, left, top, width, height, false);
+    }
+
+    // The region is always given in buffer coordinates, whichever way up it is read
+    public NV21LuminanceSource(byte[] yuvData, int dataWidth, int dataHeight, int left, int top,
+                               int width, int height, boolean upsideDown) {
+        super(width, height);
+
+        if (left < 0 || top < 0 || left + width > dataWidth || top + height > dataHeight) {
+            throw new IllegalArgumentException("Region must fit within the frame");
+        }
+
+        mYuvData = yuvData;
+        mDataWidth = dataWidth;
+        mDataHeight = dataHeight;
+        mLeft = left;
+        mTop = top;
+        mUpsideDown = upsideDown;
+    }
+
+    // The buffer read from, so one borrowed from a pool can be handed back once decoding is done
+    public byte[] getYuvData() {
+        return mYuvData;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+
+        if (mUpsideDown) {
+            copyRowReversed(getHeight() - 1 - y, row, 0);
+        } else {
+            System.arraycopy(mYuvData, (y + mTop) * mDataWidth + mLeft, row, 0, width);
+        }
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+
+        if (mUpsideDown) {
+            byte[] matrix = new byte[width * height];
+            for (int y = 0; y < height; y++) {
+                copyRowReversed(height - 1 - y, matrix, y * width);
+            }
+            return matrix;
+        }
+
+        // The whole frame is wanted, the Y plane can be handed over as is
+        if (width == mDataWidth && height == mDataHeight) {
+            return mYuvData;
+        }
+
+        byte[] matrix = new byte[width * height];
+        int inputOffset = mTop * mDataWidth + mLeft;
+
+        if (width == mDataWidth) {
+            System.arraycopy(mYuvData, inputOffset, matrix, 0, width * height);
+            return matrix;
+        }
+
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(mYuvData, inputOffset, matrix, y * width, width);
+            inputOffset += mDataWidth;
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        if (mUpsideDown) {
+            // The crop is asked for in the turned image, so it is mirrored back into the buffer
+            return new NV21LuminanceSource(mYuvData, mDataWidth, mDataHeight,
+                    mLeft + getWidth() - left - width, mTop + getHeight() - top - height, width, height, true);
+        }
+        return new NV21LuminanceSource(mYuvData, mDataWidth, mDataHeight, mLeft + left, mTop + top,
+                width, height);
+    }
+
+    // Copies buffer row regionRow of the region into out, last pixel first
+    private void copyRowReversed(int regionRow, byte[] out, int outOffset) {
+        int width = getWidth();
+        int inputOffset = (regionRow + mTop) * mDataWidth + mLeft + width - 1;
+        for (int x = 0; x < width; x++) {
+            out[outOffset + x] = mYuvData[inputOffset - x];
+        }
+    }
+}
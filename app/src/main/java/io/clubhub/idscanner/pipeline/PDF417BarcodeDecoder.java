@@ -0,0 +1,31 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.pdf417.PDF417Reader;
+
+// Decodes PDF417 with zxing, holds no state so one instance can be shared by every decode thread
+public class PDF417BarcodeDecoder implements BarcodeDecoder {
+
+    @Override
+    public String decode(LuminanceSource source, DecodeBatchToken batchToken) {
+        BinaryBitmap pdf417Barcode = new BinaryBitmap(new HybridBinarizer(source));
+
+        try {
+            // Binarize up front so the batch can still be checked before the actual decode
+            batchToken.checkpoint();
+            pdf417Barcode.getBlackMatrix();
+
+            batchToken.checkpoint();
+            Result result = (new PDF417Reader()).decode(pdf417Barcode);
+            return result.getText();
+        } catch (ReaderException e) {
+            return null;
+        }
+    }
+}
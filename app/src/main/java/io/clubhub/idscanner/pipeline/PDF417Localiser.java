@@ -0,0 +1,140 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds the PDF417 barcode on a downscaled copy of the image, only the rect found there is read at
+// full resolution. Each stage is public on its own so they can be timed separately
+public class PDF417Localiser implements BarcodeLocaliser {
+    // Block size and kernels are the full resolution ones (13, 1x11, 80x1) scaled down to match
+    public static final int LOCALISATION_SCALE = 4;
+    public static final int LOCALISATION_BLOCK_SIZE = 5;
+    public static final int LOCALISATION_THRESHOLD_OFFSET = 10;
+    private static final int PDF417_CROP_PIXEL_BUFFER = 20;
+
+    private final Mat mOpenKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT,
+            new Size(1, 11 / LOCALISATION_SCALE));
+    private final Mat mCloseKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT,
+            new Size(80 / LOCALISATION_SCALE, 1));
+
+    @Override
+    public Rect locate(Mat grey, DecodeBatchToken batchToken, MatAllocator allocator) {
+        Mat scaled = downscale(grey, allocator);
+        Mat bw = null;
+        Mat blurred = null;
+
+        try {
+            batchToken.checkpoint();
+            bw = threshold(scaled, allocator);
+
+            batchToken.checkpoint();
+            blurred = morphology(bw, allocator);
+
+            batchToken.checkpoint();
+            Rect scaledRect = findCandidate(blurred, scaled);
+            return scaledRect == null ? null : toFullResolution(scaledRect, grey);
+        } finally {
+            allocator.releaseMat(blurred);
+            allocator.releaseMat(bw);
+            allocator.releaseMat(scaled);
+        }
+    }
+
+    public Mat downscale(Mat grey, MatAllocator allocator) {
+        int scaledRows = Math.max(grey.rows() / LOCALISATION_SCALE, 1);
+        int scaledCols = Math.max(grey.cols() / LOCALISATION_SCALE, 1);
+        Mat scaled = allocator.acquireMat(scaledRows, scaledCols, CvType.CV_8UC1);
+        // Area averaging keeps the bars as grey stripes instead of aliasing them away
+        Imgproc.resize(grey, scaled, scaled.size(), 0, 0, Imgproc.INTER_AREA);
+        return scaled;
+    }
+
+    // Box mean instead of OpenCV's Gaussian one, see TiledAdaptiveThreshold. The morphology after it
+    // closes the bars into a box either way, the few percent of pixels that differ along stroke edges
+    // don't move it. The scaled image is too small to be worth splitting, and the decode workers calling
+    // this already keep the cores busy, so it stays on the calling thread. The Java API can't reach a
+    // mat's memory, so the pixels go through pooled arrays
+    public Mat threshold(Mat scaled, MatAllocator allocator) {
+        int length = (int) scaled.total();
+        byte[] grey = allocator.acquireBytes(length);
+        byte[] binary = allocator.acquireBytes(length);
+        Mat bw = allocator.acquireMat(scaled.rows(), scaled.cols(), CvType.CV_8UC1);
+
+        try {
+            scaled.get(0, 0, grey);
+            TiledAdaptiveThreshold.thresholdOnCallingThread(grey, binary, scaled.cols(), scaled.rows(),
+                    LOCALISATION_BLOCK_SIZE, LOCALISATION_THRESHOLD_OFFSET, true);
+            bw.put(0, 0, binary);
+            return bw;
+        } finally {
+            allocator.releaseBytes(binary);
+            allocator.releaseBytes(grey);
+        }
+    }
+
+    public Mat morphology(Mat bw, MatAllocator allocator) {
+        Mat blurred = allocator.acquireMat(bw.rows(), bw.cols(), bw.type());
+        // First get rid of background noise pixels, then close the bars into one white box
+        Imgproc.morphologyEx(bw, blurred, Imgproc.MORPH_OPEN, mOpenKernel);
+        Imgproc.morphologyEx(blurred, blurred, Imgproc.MORPH_CLOSE, mCloseKernel);
+        return blurred;
+    }
+
+    // Assumes the biggest barcode shaped box in the image is the PDF417 one
+    public Rect findCandidate(Mat blurred, Mat org) {
+        List<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(blurred, contours, hierarchy, Imgproc.RETR_CCOMP,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+
+        try {
+            // Indicates that no barcode was found in pre-processing
+            if (hierarchy.empty()) {
+                return null;
+            }
+
+            Rect pdfRect = null;
+
+            for (int idx = 0; idx>=0; idx = (int) hierarchy.get(0,idx)[0]) {
+                Rect rect = Imgproc.boundingRect(contours.get(idx));
+                if (canBePDF417Rect(rect, org)) {
+                    if (pdfRect == null || pdfRect.area() < rect.area()) {
+                        pdfRect = rect;
+                    }
+                }
+            }
+
+            return pdfRect;
+        } finally {
+            for (MatOfPoint contour : contours) {
+                contour.release();
+            }
+            hierarchy.release();
+        }
+    }
+
+    // One scaled pixel of slack on each side covers what the downscale rounded off, then the crop
+    // buffer is added and clamped to the image so the rect can be used as a view without copying
+    public Rect toFullResolution(Rect scaledRect, Mat grey) {
+        int left = Math.max((scaledRect.x - 1) * LOCALISATION_SCALE - PDF417_CROP_PIXEL_BUFFER, 0);
+        int top = Math.max((scaledRect.y - 1) * LOCALISATION_SCALE - PDF417_CROP_PIXEL_BUFFER, 0);
+        int right = Math.min((scaledRect.x + scaledRect.width + 1) * LOCALISATION_SCALE
+                + PDF417_CROP_PIXEL_BUFFER, grey.cols());
+        int bottom = Math.min((scaledRect.y + scaledRect.height + 1) * LOCALISATION_SCALE
+                + PDF417_CROP_PIXEL_BUFFER, grey.rows());
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    private static boolean canBePDF417Rect(Rect rect, Mat org) {
+        return (rect.width > 3*rect.height) && (rect.width >= 0.6*org.width());
+    }
+}
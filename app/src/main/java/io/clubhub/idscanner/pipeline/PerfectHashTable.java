@@ -0,0 +1,93 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.util.Arrays;
+
+// Maps a fixed set of non-negative int keys to values with one hash and one compare per lookup.
+// The seed is searched for when the table is built so no two keys share a slot
+public final class PerfectHashTable {
+    private static final int SEEDS_PER_SIZE = 1 << 12;
+    private static final int EMPTY = -1;
+
+    private final int[] mKeys;
+    private final int[] mValues;
+    private final int mSeed;
+    private final int mShift;
+
+    public PerfectHashTable(int[] keys, int[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Every key needs a value");
+        }
+
+        // Start with a load factor of at most a half, grow until a seed spreads the keys out
+        int bits = 1;
+        while ((1 << bits) < keys.length * 2) {
+            bits++;
+        }
+
+        while (true) {
+            int seed = findSeed(keys, bits);
+            if (seed != 0) {
+                mSeed = seed;
+                mShift = 32 - bits;
+                mKeys = new int[1 << bits];
+                mValues = new int[1 << bits];
+                Arrays.fill(mKeys, EMPTY);
+
+                for (int i = 0; i < keys.length; i++) {
+                    int slot = slot(keys[i], mSeed, mShift);
+                    mKeys[slot] = keys[i];
+                    mValues[slot] = values[i];
+                }
+                return;
+            }
+            bits++;
+        }
+    }
+
+    // Returns missing when the key isn't in the table
+    public int get(int key, int missing) {
+        int slot = slot(key, mSeed, mShift);
+        return mKeys[slot] == key ? mValues[slot] : missing;
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    // Returns 0 when no seed works for this size, 0 itself is never used as a seed
+    private static int findSeed(int[] keys, int bits) {
+        int shift = 32 - bits;
+        boolean[] taken = new boolean[1 << bits];
+
+        for (int seed = 1; seed <= SEEDS_PER_SIZE; seed++) {
+            Arrays.fill(taken, false);
+            boolean collision = false;
+
+            for (int key : keys) {
+                if (key < 0) {
+                    throw new IllegalArgumentException("Keys can't be negative: " + key);
+                }
+
+                int slot = slot(key, seed, shift);
+                if (taken[slot]) {
+                    collision = true;
+                    break;
+                }
+                taken[slot] = true;
+            }
+
+            if (!collision) {
+                return seed;
+            }
+        }
+        return 0;
+    }
+
+    // Multiplicative hash, the top bits of the product are the best mixed
+    private static int slot(int key, int seed, int shift) {
+        int h = (key ^ seed) * 0x9E3779B1;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return h >>> shift;
+    }
+}
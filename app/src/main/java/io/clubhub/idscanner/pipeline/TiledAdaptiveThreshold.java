@@ -0,0 +1,176 @@
+package io.clubhub.idscanner.pipeline;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Adaptive threshold of a greyscale image split into horizontal bands, one per core. Each band builds
+// an integral image over its own rows plus half a window above and below, so the bands never need to
+// see each other's results. The local mean is a box mean sized to have the same spread as the Gaussian
+// window OpenCV's ADAPTIVE_THRESH_GAUSSIAN_C uses for the block size, which keeps the output within a
+// few percent of differing pixels of it, mostly along the edges of strokes and at the image border
+public class TiledAdaptiveThreshold {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    // Bands thinner than this spend more time on their overlap than on their own rows
+    private static final int MIN_BAND_ROWS = 64;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ThresholdBand #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    // The caller works on a band too, so the pool only needs one thread less than there are cores
+    private static final ThreadPoolExecutor BAND_EXECUTOR = createBandExecutor();
+
+    // Grown to the biggest band a thread has seen, and kept for the next image
+    private static final ThreadLocal<int[]> INTEGRAL_BUFFER = new ThreadLocal<>();
+
+    private static ThreadPoolExecutor createBandExecutor() {
+        int threadCount = Math.max(1, CPU_COUNT - 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+        // Nothing to threshold between guests
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Same arguments as Imgproc.adaptiveThreshold with ADAPTIVE_THRESH_GAUSSIAN_C and a max value of 255.
+    // A pixel is white when it is brighter than the local mean minus c, or darker with inverse set
+    public static void threshold(byte[] grey, byte[] binary, int width, int height, int blockSize, double c,
+                                 boolean inverse) {
+        threshold(grey, binary, width, height, blockSize, c, inverse,
+                Math.max(1, Math.min(CPU_COUNT, height / MIN_BAND_ROWS)));
+    }
+
+    // For callers that already run one per core, like the decode workers, where bands would only queue
+    // behind each other
+    public static void thresholdOnCallingThread(byte[] grey, byte[] binary, int width, int height,
+                                                int blockSize, double c, boolean inverse) {
+        threshold(grey, binary, width, height, blockSize, c, inverse, 1);
+    }
+
+    // The output doesn't depend on how many bands the image is split into
+    static void threshold(final byte[] grey, final byte[] binary, final int width, final int height,
+                          int blockSize, double c, final boolean inverse, int bandCount) {
+        final int radius = getBoxSize(blockSize) / 2;
+        // Rounded the same way OpenCV does, up for THRESH_BINARY and down for THRESH_BINARY_INV
+        final int offset = inverse ? (int) Math.floor(c) : (int) Math.ceil(c);
+
+        bandCount = Math.max(1, Math.min(bandCount, height));
+        int bandRows = (height + bandCount - 1) / bandCount;
+        final CountDownLatch bandsDone = new CountDownLatch(bandCount - 1);
+        final RuntimeException[] failure = new RuntimeException[1];
+
+        for (int band = 1; band < bandCount; band++) {
+            final int top = Math.min(height, band * bandRows);
+            final int bottom = Math.min(height, top + bandRows);
+            BAND_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        thresholdBand(grey, binary, width, height, top, bottom, radius, offset, inverse);
+                    } catch (RuntimeException e) {
+                        failure[0] = e;
+                    } finally {
+                        bandsDone.countDown();
+                    }
+                }
+            });
+        }
+
+        thresholdBand(grey, binary, width, height, 0, Math.min(height, bandRows), radius, offset, inverse);
+
+        // The bands write into the caller's arrays, which go back to a pool as soon as this returns. A
+        // cancelled decode interrupts its worker, so the wait carries on through it and the interrupt is
+        // passed on afterwards
+        boolean interrupted = false;
+        while (true) {
+            try {
+                bandsDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    // A box of width w has a variance of (w^2 - 1) / 12, matched to the sigma OpenCV derives from the
+    // block size when it isn't given one, and kept odd so the box is centred on the pixel
+    static int getBoxSize(int blockSize) {
+        double sigma = 0.3 * ((blockSize - 1) * 0.5 - 1) + 0.8;
+        int boxSize = (int) Math.round(Math.sqrt(12 * sigma * sigma + 1));
+        return Math.max(3, boxSize | 1);
+    }
+
+    // Writes rows top until bottom. The integral image covers those rows plus radius rows either side,
+    // clipped to the image, and windows are clipped to the image as well with the mean over what is left
+    private static void thresholdBand(byte[] grey, byte[] binary, int width, int height, int top, int bottom,
+                                      int radius, int offset, boolean inverse) {
+        int integralTop = Math.max(0, top - radius);
+        int integralBottom = Math.min(height, bottom + radius);
+        int stride = width + 1;
+        int[] integral = getIntegralBuffer((integralBottom - integralTop + 1) * stride);
+
+        // Sums can wrap on a big band, but a window's sum never comes close to overflowing so the
+        // differences below still come out right
+        for (int x = 0; x < stride; x++) {
+            integral[x] = 0;
+        }
+        for (int y = integralTop; y < integralBottom; y++) {
+            int rowOffset = y * width;
+            int integralRow = (y - integralTop + 1) * stride;
+            int rowSum = 0;
+            integral[integralRow] = 0;
+            for (int x = 0; x < width; x++) {
+                rowSum += grey[rowOffset + x] & 0xFF;
+                integral[integralRow + x + 1] = integral[integralRow - stride + x + 1] + rowSum;
+            }
+        }
+
+        byte white = (byte) 255;
+        for (int y = top; y < bottom; y++) {
+            int y0 = Math.max(integralTop, y - radius) - integralTop;
+            int y1 = Math.min(integralBottom, y + radius + 1) - integralTop;
+            int upper = y0 * stride;
+            int lower = y1 * stride;
+            int windowRows = y1 - y0;
+            int rowOffset = y * width;
+
+            for (int x = 0; x < width; x++) {
+                int x0 = Math.max(0, x - radius);
+                int x1 = Math.min(width, x + radius + 1);
+                int sum = integral[lower + x1] - integral[lower + x0] - integral[upper + x1] + integral[upper + x0];
+                int count = windowRows * (x1 - x0);
+
+                // pixel > mean - offset, kept in integers by multiplying through by the window size
+                boolean brighter = ((grey[rowOffset + x] & 0xFF) + offset) * count > sum;
+                binary[rowOffset + x] = brighter != inverse ? white : 0;
+            }
+        }
+    }
+
+    private static int[] getIntegralBuffer(int size) {
+        int[] buffer = INTEGRAL_BUFFER.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new int[size];
+            INTEGRAL_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,43 @@
+package io.clubhub.idscanner.pipeline;
+
+// Gives the door verdict the moment both dates are in the record, before the rest of the payload
+// has been read. Every field is still passed on to the wrapped listener afterwards
+public class VerdictListener implements IDFieldExtractor.FieldListener {
+
+    public interface Callback {
+        // Returning false stops the extraction, nothing more is needed from an invalid ID
+        boolean onVerdict(boolean valid, int birthDate);
+    }
+
+    private final DateValidator mValidator;
+    private final int mMinimumAge;
+    private final Callback mCallback;
+    private final IDFieldExtractor.FieldListener mNext;
+    private boolean mVerdictGiven;
+
+    public VerdictListener(DateValidator validator, int minimumAge, Callback callback,
+                           IDFieldExtractor.FieldListener next) {
+        mValidator = validator;
+        mMinimumAge = minimumAge;
+        mCallback = callback;
+        mNext = next;
+    }
+
+    @Override
+    public boolean onField(IDRecord record, int field) {
+        if (!mVerdictGiven && record.has(IDRecord.BIRTH_DATE) && record.has(IDRecord.ID_EXPIRY_DATE)) {
+            mVerdictGiven = true;
+
+            int birthDate = DateValidator.readDate(record, IDRecord.BIRTH_DATE);
+            int expiryDate = DateValidator.readDate(record, IDRecord.ID_EXPIRY_DATE);
+            if (!mCallback.onVerdict(mValidator.isValid(birthDate, expiryDate, mMinimumAge), birthDate)) {
+                return false;
+            }
+        }
+        return mNext.onField(record, field);
+    }
+
+    public boolean isVerdictGiven() {
+        return mVerdictGiven;
+    }
+}
@@ -0,0 +1,82 @@
+package io.clubhub.idscanner;
+
+import io.clubhub.idscanner.imageutils.IDDictionary;
+import io.clubhub.idscanner.imageutils.pdf417.PDF417DataHandler;
+import io.clubhub.idscanner.pipeline.AAMVAParser;
+import io.clubhub.idscanner.pipeline.DateValidator;
+import io.clubhub.idscanner.pipeline.IDFieldExtractor;
+import io.clubhub.idscanner.pipeline.IDRecord;
+import io.clubhub.idscanner.pipeline.JurisdictionTable;
+
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Reads a payload with the bundled jurisdiction profiles and takes the record all the way to what is
+// uploaded, the birth date has to come out the same whichever way the card writes it
+public class HTTPHelperTest {
+    // Unit tests run from the module directory
+    private static final String JURISDICTIONS_FILE = "src/main/res/raw/jurisdictions";
+
+    private static final String HEADER = "@\n\u001e\rANSI ";
+    // Dates as MMddyyyy
+    private static final String CALIFORNIA_PAYLOAD = HEADER + "636014080102DL00410288ZC03290024DLDCAC\n"
+            + "DAQD1234567\nDCSSMITH\nDACJOHN\nDBB01151990\nDBA01152030\nDBC1\n";
+    // Dates as yyyyMMdd
+    private static final String ONTARIO_PAYLOAD = HEADER + "636012030002DL00410261ZO03020011DLDCAG\n"
+            + "DAQS1234123451234\nDCSSMITH,\nDCTJOHN\nDBB19900115\nDBA20300115\nDBC1\n";
+
+    private static JurisdictionTable sJurisdictions;
+
+    @BeforeClass
+    public static void loadJurisdictions() throws Exception {
+        sJurisdictions = JurisdictionTable.parse(new FileInputStream(JURISDICTIONS_FILE));
+    }
+
+    @Test
+    public void usStateBirthDateIsUploadedAsIsoDate() throws Exception {
+        IDRecord record = parse(CALIFORNIA_PAYLOAD);
+        assertEquals("us_state", record.getProfile().getName());
+
+        JSONObject converted = HTTPHelper.convertToServerSchema(toStoredJSON(record));
+
+        assertEquals("1990-01-15", converted.getString("date_of_birth"));
+        assertEquals("M", converted.getString("gender"));
+        assertEquals(30, converted.getInt("age"));
+    }
+
+    @Test
+    public void birthDateIsStoredTheSameWayForEveryJurisdiction() throws Exception {
+        IDRecord california = parse(CALIFORNIA_PAYLOAD);
+        IDRecord ontario = parse(ONTARIO_PAYLOAD);
+        assertEquals("ontario", ontario.getProfile().getName());
+
+        assertEquals("19900115", toStoredJSON(california).getString(IDDictionary.BIRTH_DATE_KEY));
+        assertEquals("19900115", toStoredJSON(ontario).getString(IDDictionary.BIRTH_DATE_KEY));
+        assertEquals("1990-01-15", HTTPHelper.convertToServerSchema(toStoredJSON(ontario))
+                .getString("date_of_birth"));
+    }
+
+    private static IDRecord parse(String payload) {
+        IDRecord record = new IDRecord();
+        new AAMVAParser(sJurisdictions).extract(payload, record, new IDFieldExtractor.FieldListener() {
+            @Override
+            public boolean onField(IDRecord record, int field) {
+                return true;
+            }
+        });
+        assertTrue(record.hasAll());
+        return record;
+    }
+
+    // What PDF417DataHandler puts in the scan journal for a valid ID
+    private static JSONObject toStoredJSON(IDRecord record) throws Exception {
+        int birthDate = DateValidator.readDate(record, IDRecord.BIRTH_DATE);
+        return PDF417DataHandler.toJSON(record, birthDate, 30, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,71 @@
+package io.clubhub.idscanner;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+
+// Hourly counts belong to one night, a night runs until the morning after it started
+public class NightStatsTest {
+
+    @Test
+    public void entriesAfterMidnightCountTowardsTheSameNight() {
+        NightStats stats = new NightStats();
+        stats.recordEntry(true, 21, getTime(10, 23, 30));
+        stats.recordEntry(false, 24, getTime(11, 1, 15));
+
+        assertEquals(1, stats.getHourlyCount(23));
+        assertEquals(1, stats.getHourlyCount(1));
+        assertEquals(getTime(11, 8, 0), stats.getNightEndMillis());
+    }
+
+    @Test
+    public void nextNightStartsTheHourlyCountsAgain() {
+        NightStats stats = new NightStats();
+        stats.recordEntry(true, 21, getTime(10, 23, 30));
+        stats.recordEntry(true, 21, getTime(10, 23, 45));
+
+        stats.recordEntry(false, 30, getTime(11, 23, 10));
+
+        assertEquals(1, stats.getHourlyCount(23));
+        // The rest of the night's counts are left alone
+        assertEquals(3, stats.getTotalCount());
+        assertEquals(2, stats.getMaleCount());
+        assertEquals(getTime(12, 8, 0), stats.getNightEndMillis());
+    }
+
+    @Test
+    public void countsRestoredWithoutANightAreStartedAgain() {
+        NightStats stats = new NightStats();
+        int[] hourlyCounts = new int[NightStats.HOURS_IN_DAY];
+        hourlyCounts[23] = 40;
+        // Checkpoints from before nights were tracked have no night end
+        stats.restore(40, 20, new int[NightStats.AGE_BAND_LOWER_BOUNDS.length], hourlyCounts, 0);
+
+        stats.recordEntry(true, 21, getTime(10, 23, 30));
+
+        assertEquals(1, stats.getHourlyCount(23));
+        assertEquals(41, stats.getTotalCount());
+    }
+
+    @Test
+    public void restoredNightKeepsItsHourlyCounts() {
+        NightStats stats = new NightStats();
+        int[] hourlyCounts = new int[NightStats.HOURS_IN_DAY];
+        hourlyCounts[23] = 40;
+        stats.restore(40, 20, new int[NightStats.AGE_BAND_LOWER_BOUNDS.length], hourlyCounts,
+                getTime(11, 8, 0));
+
+        stats.recordEntry(true, 21, getTime(10, 23, 30));
+
+        assertEquals(41, stats.getHourlyCount(23));
+    }
+
+    private static long getTime(int dayOfMonth, int hourOfDay, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, dayOfMonth, hourOfDay, minute);
+        return calendar.getTimeInMillis();
+    }
+}
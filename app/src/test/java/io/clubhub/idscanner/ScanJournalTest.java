@@ -0,0 +1,239 @@
+package io.clubhub.idscanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Runs the journal against a real file, reopening it where the app would after being killed
+public class ScanJournalTest {
+    private static final int HEADER_SIZE = 16;
+    // Enough records of this size get past the size compaction waits for
+    private static final int LARGE_RECORD_SIZE = 1024;
+
+    private File mFile;
+    private ScanJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("scan_journal", null);
+        mJournal = new ScanJournal(mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mFile.delete();
+        File compactionFile = getCompactionFile();
+        if (compactionFile.isDirectory()) {
+            for (File file : compactionFile.listFiles()) {
+                file.delete();
+            }
+        }
+        compactionFile.delete();
+    }
+
+    @Test
+    public void recordsAreReadBackInOrder() throws IOException {
+        appendAll("a", "b", "c");
+
+        assertEquals(Arrays.asList("a", "b"), mJournal.readBatch(2).getRecords());
+        assertEquals(Arrays.asList("c"), mJournal.readBatch(2).getRecords());
+        assertTrue(mJournal.readBatch(2).isEmpty());
+        assertEquals(3, mJournal.getPendingCount());
+    }
+
+    @Test
+    public void rewindReadsUnacknowledgedRecordsAgain() throws IOException {
+        appendAll("a", "b", "c");
+        mJournal.readBatch(2);
+
+        mJournal.rewind();
+
+        assertEquals(Arrays.asList("a", "b", "c"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        appendAll("a", "b");
+        reopen();
+
+        assertEquals(2, mJournal.getPendingCount());
+        assertEquals(Arrays.asList("a", "b"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test
+    public void acknowledgedRecordsAreNotReadAfterReopening() throws IOException {
+        appendAll("a", "b", "c");
+        mJournal.ack(mJournal.readBatch(2));
+        reopen();
+
+        assertEquals(1, mJournal.getPendingCount());
+        assertEquals(Arrays.asList("c"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test
+    public void acknowledgingEverythingLeavesJustTheHeader() throws IOException {
+        appendAll("a", "b");
+        mJournal.ack(mJournal.readBatch(10));
+
+        assertEquals(0, mJournal.getPendingCount());
+        assertEquals(0, mJournal.getOldestPendingTime());
+        assertEquals(HEADER_SIZE, mFile.length());
+
+        mJournal.append("c");
+        reopen();
+        assertEquals(Arrays.asList("c"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batchesHaveToBeAcknowledgedInOrder() throws IOException {
+        appendAll("a", "b");
+        mJournal.readBatch(1);
+        ScanJournal.Batch second = mJournal.readBatch(1);
+
+        mJournal.ack(second);
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingRecords() throws IOException {
+        List<String> records = appendLargeRecords(100);
+        long sizeBefore = mFile.length();
+
+        mJournal.ack(mJournal.readBatch(80));
+
+        assertTrue("Journal wasn't compacted", mFile.length() < sizeBefore / 2);
+        assertFalse(getCompactionFile().exists());
+        assertEquals(20, mJournal.getPendingCount());
+        assertEquals(records.subList(80, 100), mJournal.readBatch(100).getRecords());
+
+        // Appends after a compaction go to the end of the compacted file
+        mJournal.append("after");
+        reopen();
+        List<String> expected = new ArrayList<>(records.subList(80, 100));
+        expected.add("after");
+        assertEquals(expected, mJournal.readBatch(100).getRecords());
+    }
+
+    @Test
+    public void acknowledgementIsKeptWhenCompactionFails() throws IOException {
+        List<String> records = appendLargeRecords(100);
+        // A directory in the way stops the compacted copy from being written
+        File compactionFile = getCompactionFile();
+        assertTrue(compactionFile.mkdir());
+        assertTrue(new File(compactionFile, "blocker").createNewFile());
+
+        try {
+            mJournal.ack(mJournal.readBatch(80));
+            fail("Compaction should have failed");
+        } catch (IOException expected) {
+        }
+
+        // The batch stays acknowledged both in memory and on disk
+        assertEquals(20, mJournal.getPendingCount());
+        mJournal.rewind();
+        assertEquals(records.subList(80, 100), mJournal.readBatch(100).getRecords());
+
+        reopen();
+        assertEquals(20, mJournal.getPendingCount());
+        assertEquals(records.subList(80, 100), mJournal.readBatch(100).getRecords());
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnOpen() throws IOException {
+        appendAll("a", "b", "c");
+        mJournal.close();
+        long fullSize = mFile.length();
+
+        // Killed halfway through writing the last record
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(fullSize - 1);
+        } finally {
+            file.close();
+        }
+        mJournal = new ScanJournal(mFile);
+
+        assertEquals(2, mJournal.getPendingCount());
+        assertEquals(Arrays.asList("a", "b"), mJournal.readBatch(10).getRecords());
+
+        // The next append goes where the torn record was
+        mJournal.append("d");
+        reopen();
+        assertEquals(Arrays.asList("a", "b", "d"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test
+    public void corruptRecordIsCutOffWithEverythingAfterIt() throws IOException {
+        appendAll("a", "bbbb", "c");
+        mJournal.close();
+
+        // Flips a byte of the second record's payload, right after the first record
+        long secondPayload = HEADER_SIZE + (16 + 1) + 16;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(secondPayload);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+        mJournal = new ScanJournal(mFile);
+
+        assertEquals(Arrays.asList("a"), mJournal.readBatch(10).getRecords());
+    }
+
+    @Test
+    public void unreadableFileStartsAnEmptyJournal() throws IOException {
+        mJournal.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(0);
+            file.write(new byte[] {1, 2, 3});
+        } finally {
+            file.close();
+        }
+        mJournal = new ScanJournal(mFile);
+
+        assertEquals(0, mJournal.getPendingCount());
+        assertEquals(HEADER_SIZE, mFile.length());
+    }
+
+    private void appendAll(String... records) throws IOException {
+        for (String record : records) {
+            mJournal.append(record);
+        }
+    }
+
+    private List<String> appendLargeRecords(int count) throws IOException {
+        List<String> records = new ArrayList<>();
+        char[] padding = new char[LARGE_RECORD_SIZE];
+        Arrays.fill(padding, 'x');
+
+        for (int i = 0; i < count; i++) {
+            String record = i + new String(padding);
+            mJournal.append(record);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private void reopen() throws IOException {
+        mJournal.close();
+        mJournal = new ScanJournal(mFile);
+    }
+
+    private File getCompactionFile() {
+        return new File(mFile.getPath() + ".compact");
+    }
+}
@@ -0,0 +1,326 @@
+package io.clubhub.idscanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Drives the uploader's batching, acknowledgement and back off by hand, with a sender standing in for
+// the server and a runner that only runs what the test lets through. The network side is covered by
+// the instrumented ScanUploaderTest
+public class ScanUploaderLogicTest {
+    private static final long INITIAL_RETRY_DELAY = 1000;
+    private static final int BATCH_THRESHOLD = FileManager.ClubHubSharedPreferences.CACHE_PREF_THRESHOLD;
+    private static final int MAX_BATCH_RECORDS = 100;
+
+    private File mFile;
+    private ScanJournal mJournal;
+    private ManualRunner mRunner;
+    private FakeSender mSender;
+    private ScanUploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("scan_journal", null);
+        mJournal = new ScanJournal(mFile);
+        mRunner = new ManualRunner();
+        mSender = new FakeSender();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void leftoverScansGoUpStraightAway() throws IOException {
+        appendAll("a", "b", "c");
+        startUploader();
+
+        mRunner.runDue();
+
+        assertEquals(Arrays.asList("a", "b", "c"), mSender.takeSent().mRecords);
+    }
+
+    @Test
+    public void sentBatchIsAcknowledged() throws IOException {
+        appendAll("a", "b");
+        startUploader();
+        mRunner.runDue();
+
+        mSender.takeSent().mCallback.onSent();
+        mRunner.runDue();
+
+        assertEquals(0, mJournal.getPendingCount());
+        assertNull(mSender.mSent);
+    }
+
+    @Test
+    public void failedBatchIsSentAgainAfterBackingOff() throws IOException {
+        appendAll("a", "b");
+        startUploader();
+        mRunner.runDue();
+
+        mSender.takeSent().mCallback.onFailed(0, new IOException("Timed out"));
+        mRunner.runDue();
+
+        // Nothing is acknowledged and nothing goes out before the back off is up
+        assertEquals(2, mJournal.getPendingCount());
+        assertNull(mSender.mSent);
+        assertBackOff(INITIAL_RETRY_DELAY, mRunner.nextDelay());
+
+        mRunner.runNext();
+        assertEquals(Arrays.asList("a", "b"), mSender.takeSent().mRecords);
+    }
+
+    @Test
+    public void rejectedBatchIsDroppedAndTheNextOneGoesUp() throws IOException {
+        appendAll(createRecords(MAX_BATCH_RECORDS + 1));
+        startUploader();
+        mRunner.runDue();
+
+        mSender.takeSent().mCallback.onFailed(400, new IOException("Bad request"));
+        mRunner.runDue();
+
+        // Not retried, and it doesn't hold up the scan behind it, which goes up with its batch window
+        assertEquals(1, mJournal.getPendingCount());
+        mRunner.runNext();
+        assertEquals(Arrays.asList("record " + MAX_BATCH_RECORDS), mSender.takeSent().mRecords);
+    }
+
+    @Test
+    public void throttledBatchIsSentAgain() throws IOException {
+        appendAll("a");
+        startUploader();
+        mRunner.runDue();
+
+        mSender.takeSent().mCallback.onFailed(429, new IOException("Too many requests"));
+        mRunner.runDue();
+
+        assertEquals(1, mJournal.getPendingCount());
+        assertBackOff(INITIAL_RETRY_DELAY, mRunner.nextDelay());
+        mRunner.runNext();
+        assertEquals(Arrays.asList("a"), mSender.takeSent().mRecords);
+    }
+
+    @Test
+    public void onlyTransientFailuresAreRetried() {
+        assertTrue(ScanUploader.isRetryable(0));
+        assertTrue(ScanUploader.isRetryable(408));
+        assertTrue(ScanUploader.isRetryable(429));
+        assertTrue(ScanUploader.isRetryable(500));
+        assertTrue(ScanUploader.isRetryable(503));
+        assertFalse(ScanUploader.isRetryable(400));
+        assertFalse(ScanUploader.isRetryable(413));
+        assertFalse(ScanUploader.isRetryable(422));
+    }
+
+    @Test
+    public void backOffDoublesWithEveryFailure() throws IOException {
+        appendAll("a");
+        startUploader();
+        mRunner.runDue();
+
+        for (int attempt = 0; attempt < 4; attempt++) {
+            mSender.takeSent().mCallback.onFailed(503, new IOException("Unavailable"));
+            mRunner.runDue();
+            assertBackOff(INITIAL_RETRY_DELAY << attempt, mRunner.nextDelay());
+            mRunner.runNext();
+        }
+
+        // A success starts the back off from the beginning again
+        mSender.takeSent().mCallback.onSent();
+        mRunner.runDue();
+        mJournal.append("b");
+        mUploader.flush();
+        mRunner.runDue();
+        mSender.takeSent().mCallback.onFailed(0, new IOException("Timed out"));
+        mRunner.runDue();
+        assertBackOff(INITIAL_RETRY_DELAY, mRunner.nextDelay());
+    }
+
+    @Test
+    public void onlyOneBatchIsInTheAirAtATime() throws IOException {
+        appendAll("a");
+        startUploader();
+        mRunner.runDue();
+        FakeSender.Sent first = mSender.takeSent();
+
+        appendAll(createRecords(BATCH_THRESHOLD));
+        mUploader.onScanStored();
+        mRunner.runDue();
+        assertNull(mSender.mSent);
+
+        // The scans stored meanwhile follow as soon as the first batch is back
+        first.mCallback.onSent();
+        mRunner.runDue();
+        assertEquals(BATCH_THRESHOLD, mSender.takeSent().mRecords.size());
+    }
+
+    @Test
+    public void fewScansWaitForTheBatchWindow() throws IOException {
+        startUploader();
+        appendAll("a");
+        mUploader.onScanStored();
+        mRunner.runDue();
+
+        assertNull(mSender.mSent);
+        assertTrue("Flush wasn't scheduled", mRunner.nextDelay() > 60 * 1000);
+
+        mRunner.runNext();
+        assertEquals(Arrays.asList("a"), mSender.takeSent().mRecords);
+    }
+
+    @Test
+    public void nothingGoesUpOfflineOrDuringAScan() throws IOException {
+        startUploader();
+        mUploader.setOnline(false);
+        appendAll(createRecords(BATCH_THRESHOLD));
+        mUploader.onScanStored();
+        mRunner.runDue();
+        assertNull(mSender.mSent);
+
+        mUploader.setScanInProgress(true);
+        mUploader.setOnline(true);
+        mRunner.runDue();
+        assertNull(mSender.mSent);
+
+        mUploader.setScanInProgress(false);
+        mRunner.runDue();
+        assertEquals(BATCH_THRESHOLD, mSender.takeSent().mRecords.size());
+    }
+
+    @Test
+    public void failedAcknowledgementBacksOff() throws IOException {
+        appendAll("a");
+        startUploader();
+        mRunner.runDue();
+
+        // A closed journal can't write the acknowledgement
+        mJournal.close();
+        mSender.takeSent().mCallback.onSent();
+        mRunner.runDue();
+
+        assertBackOff(INITIAL_RETRY_DELAY, mRunner.nextDelay());
+        mJournal = new ScanJournal(mFile);
+    }
+
+    private void startUploader() {
+        mUploader = new ScanUploader(mJournal, mSender, mRunner, INITIAL_RETRY_DELAY);
+    }
+
+    private void appendAll(String... records) throws IOException {
+        for (String record : records) {
+            mJournal.append(record);
+        }
+    }
+
+    private static String[] createRecords(int count) {
+        String[] records = new String[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = "record " + i;
+        }
+        return records;
+    }
+
+    // The back off has up to a quarter taken off as jitter
+    private static void assertBackOff(long expected, long delay) {
+        assertTrue("Backed off for " + delay + "ms, expected about " + expected,
+                delay > expected * 3 / 4 - 50 && delay <= expected);
+    }
+
+    private static class FakeSender implements ScanBatchSender {
+        static class Sent {
+            final List<String> mRecords;
+            final Callback mCallback;
+
+            Sent(List<String> records, Callback callback) {
+                mRecords = records;
+                mCallback = callback;
+            }
+        }
+
+        Sent mSent;
+
+        @Override
+        public int send(List<String> records, Callback callback) {
+            assertNull("A batch went out while another was in the air", mSent);
+            mSent = new Sent(new ArrayList<>(records), callback);
+            return 100;
+        }
+
+        Sent takeSent() {
+            Sent sent = mSent;
+            assertNotNull("No batch was sent", sent);
+            mSent = null;
+            return sent;
+        }
+    }
+
+    // Keeps tasks in the order they'd run. Delayed tasks only run when the test asks for them
+    private static class ManualRunner implements ScanUploader.TaskRunner {
+        private final List<Runnable> mTasks = new ArrayList<>();
+        private final List<Long> mDelays = new ArrayList<>();
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            int index = 0;
+            while (index < mDelays.size() && mDelays.get(index) <= delayMillis) {
+                index++;
+            }
+            mTasks.add(index, task);
+            mDelays.add(index, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            int index;
+            while ((index = mTasks.indexOf(task)) >= 0) {
+                mTasks.remove(index);
+                mDelays.remove(index);
+            }
+        }
+
+        @Override
+        public void quit() {
+            mTasks.clear();
+            mDelays.clear();
+        }
+
+        // Runs everything posted without a delay, including what those tasks post
+        void runDue() {
+            while (!mTasks.isEmpty() && mDelays.get(0) == 0) {
+                runNext();
+            }
+        }
+
+        long nextDelay() {
+            assertTrue("Nothing is scheduled", !mTasks.isEmpty());
+            return mDelays.get(0);
+        }
+
+        // Runs the next task as if its delay were up, then whatever it posts without a delay
+        void runNext() {
+            mDelays.remove(0);
+            mTasks.remove(0).run();
+            runDue();
+        }
+    }
+}
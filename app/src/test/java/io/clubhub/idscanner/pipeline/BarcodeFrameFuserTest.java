@@ -0,0 +1,137 @@
+package io.clubhub.idscanner.pipeline;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.pdf417.PDF417Writer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+// Renders one barcode into frames that are each shifted, scaled and missing a different stretch of
+// columns, the way glare moves across a card between preview frames
+public class BarcodeFrameFuserTest {
+    private static final String TEXT = "@\n\u001e\rANSI 636012040002DL00410278ZO03190008DLDCAG\nDCBNONE\n"
+            + "DCDNONE\nDBA20201231\nDCSSAMPLE\nDACJANE\nDADNONE\nDBD20150101\nDBB19900101\nDBC2\n"
+            + "DAYBRO\nDAU165 cm\nDAG123 MAIN ST\nDAITORONTO\nDAJON\nDAKM5V 1A1\nDAQS1234-56789-01234\n";
+    // Room for the barcode at the biggest scale and offset below
+    private static final double MAX_SCALE = 3.2;
+    private static final int MARGIN = 250;
+    private static final int DARK = 30;
+    private static final int LIGHT = 220;
+
+    private final BarcodeDecoder mDecoder = new PDF417BarcodeDecoder();
+    private final DecodeBatchToken mBatchToken = new DecodeBatchToken();
+    private BitMatrix mBarcode;
+    // Where the data columns start and end in mBarcode, between the start and stop patterns
+    private int mDataLeft;
+    private int mDataRight;
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    @Before
+    public void setUp() throws WriterException {
+        mBarcode = new PDF417Writer().encode(TEXT, BarcodeFormat.PDF_417, 0, 0);
+        int[] enclosing = mBarcode.getEnclosingRectangle();
+        // The start pattern opens with a bar 8 modules wide
+        int barWidth = 0;
+        while (mBarcode.get(enclosing[0] + barWidth, enclosing[1])) {
+            barWidth++;
+        }
+        int moduleWidth = barWidth / 8;
+        // 17 modules each of start pattern and left row indicator, 17 of right row indicator and 18 of
+        // stop pattern
+        mDataLeft = enclosing[0] + 34 * moduleWidth;
+        mDataRight = enclosing[0] + enclosing[2] - 35 * moduleWidth;
+        mFrameWidth = (int) (mBarcode.getWidth() * MAX_SCALE) + MARGIN;
+        mFrameHeight = (int) (mBarcode.getHeight() * MAX_SCALE) + MARGIN;
+    }
+
+    @Test
+    public void framesThatFailAloneDecodeTogether() {
+        LuminanceSource[] frames = {
+                createFrame(3.0, 100, 80, 0.0),
+                createFrame(3.1, 60, 110, 1.0 / 3),
+                createFrame(2.9, 140, 60, 2.0 / 3),
+        };
+        for (int i = 0; i < frames.length; i++) {
+            assertNull("Frame " + i + " decoded on its own", mDecoder.decode(frames[i], mBatchToken));
+        }
+
+        BarcodeFrameFuser fuser = new BarcodeFrameFuser();
+        assertNull(fuser.addFailedFrame(frames[0], mBatchToken));
+        assertNull(fuser.addFailedFrame(frames[1], mBatchToken));
+        LuminanceSource fused = fuser.addFailedFrame(frames[2], mBatchToken);
+
+        assertNotNull(fused);
+        assertEquals(TEXT, mDecoder.decode(fused, mBatchToken));
+    }
+
+    @Test
+    public void tiltedFrameLinesUpRowByRow() {
+        BarcodeFrameFuser fuser = new BarcodeFrameFuser();
+        assertNull(fuser.addFailedFrame(createFrame(3.0, 100, 80, 0.0), mBatchToken));
+        assertNull(fuser.addFailedFrame(createFrame(3.0, 60, 80, 1.0 / 3, 0.15), mBatchToken));
+        LuminanceSource fused = fuser.addFailedFrame(createFrame(2.9, 140, 60, 2.0 / 3), mBatchToken);
+
+        assertEquals(TEXT, mDecoder.decode(fused, mBatchToken));
+    }
+
+    @Test
+    public void framesWithoutABarcodeDontVote() {
+        BarcodeFrameFuser fuser = new BarcodeFrameFuser();
+        LuminanceSource blank = createBlankFrame();
+
+        assertNull(fuser.addFailedFrame(createFrame(3.0, 100, 80, 0.0), mBatchToken));
+        assertNull(fuser.addFailedFrame(blank, mBatchToken));
+        assertNull(fuser.addFailedFrame(blank, mBatchToken));
+        // Two frames are too few for a majority, the blank ones didn't count
+        assertNull(fuser.addFailedFrame(createFrame(3.1, 60, 110, 1.0 / 3), mBatchToken));
+        assertNotNull(fuser.addFailedFrame(createFrame(2.9, 140, 60, 2.0 / 3), mBatchToken));
+    }
+
+    private LuminanceSource createFrame(double scale, int left, int top, double damageStart) {
+        return createFrame(scale, left, top, damageStart, 0);
+    }
+
+    // The barcode scaled up and placed at left, top, with a third of its data columns washed out from
+    // damageStart across. Shear slides each row that many pixels right per row down, a card held at an
+    // angle
+    private LuminanceSource createFrame(double scale, int left, int top, double damageStart, double shear) {
+        byte[] frame = new byte[mFrameWidth * mFrameHeight];
+        Arrays.fill(frame, (byte) LIGHT);
+
+        int dataWidth = mDataRight - mDataLeft;
+        int damageLeft = mDataLeft + (int) (dataWidth * damageStart);
+        int damageRight = damageLeft + dataWidth / 3;
+
+        int width = (int) (mBarcode.getWidth() * scale);
+        int height = (int) (mBarcode.getHeight() * scale);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int moduleX = (int) (x / scale);
+                int moduleY = (int) (y / scale);
+                boolean damaged = moduleX >= damageLeft && moduleX < damageRight;
+                if (!damaged && mBarcode.get(moduleX, moduleY)) {
+                    frame[(top + y) * mFrameWidth + left + x + (int) (y * shear)] = (byte) DARK;
+                }
+            }
+        }
+        return new NV21LuminanceSource(frame, mFrameWidth, mFrameHeight, 0, 0, mFrameWidth, mFrameHeight);
+    }
+
+    private LuminanceSource createBlankFrame() {
+        byte[] frame = new byte[mFrameWidth * mFrameHeight];
+        Arrays.fill(frame, (byte) LIGHT);
+        return new NV21LuminanceSource(frame, mFrameWidth, mFrameHeight, 0, 0, mFrameWidth, mFrameHeight);
+    }
+}
@@ -0,0 +1,65 @@
+package io.clubhub.idscanner.pipeline;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameQualityGateTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    // Lets a frame through after this many rejections in a row, see FrameQualityGate
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 5;
+
+    @Test
+    public void flatFrameIsBlurry() {
+        assertEquals(FrameQualityGate.REJECTED_BLURRY, new FrameQualityGate().check(createFrame(128), WIDTH,
+                0, 0, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void blownOutFrameIsGlare() {
+        assertEquals(FrameQualityGate.REJECTED_GLARE, new FrameQualityGate().check(createFrame(255), WIDTH,
+                0, 0, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void frameIsLetThroughAfterTooManyRejections() {
+        FrameQualityGate gate = new FrameQualityGate();
+        byte[] frame = createFrame(128);
+
+        assertRejected(gate, frame, MAX_CONSECUTIVE_REJECTIONS);
+        assertEquals(FrameQualityGate.ACCEPTED, check(gate, frame));
+        assertEquals(FrameQualityGate.REJECTED_BLURRY, check(gate, frame));
+    }
+
+    @Test
+    public void newBatchStartsCountingRejectionsAgain() {
+        FrameQualityGate gate = new FrameQualityGate();
+        byte[] frame = createFrame(128);
+        assertRejected(gate, frame, MAX_CONSECUTIVE_REJECTIONS - 1);
+
+        // Without this the next scan's first bad frame would be let through
+        gate.startBatch();
+
+        assertRejected(gate, frame, MAX_CONSECUTIVE_REJECTIONS);
+        assertEquals(FrameQualityGate.ACCEPTED, check(gate, frame));
+    }
+
+    private static void assertRejected(FrameQualityGate gate, byte[] frame, int times) {
+        for (int i = 0; i < times; i++) {
+            assertEquals("Frame " + i, FrameQualityGate.REJECTED_BLURRY, check(gate, frame));
+        }
+    }
+
+    private static int check(FrameQualityGate gate, byte[] frame) {
+        return gate.check(frame, WIDTH, 0, 0, WIDTH, HEIGHT);
+    }
+
+    private static byte[] createFrame(int luminance) {
+        byte[] frame = new byte[WIDTH * HEIGHT];
+        Arrays.fill(frame, (byte) luminance);
+        return frame;
+    }
+}
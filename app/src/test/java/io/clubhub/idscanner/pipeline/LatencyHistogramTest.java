@@ -0,0 +1,43 @@
+package io.clubhub.idscanner.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    // The largest duration the regular buckets hold, just under 36 minutes
+    private static final long LARGEST_REGULAR_MICROS = (1L << 31) - 1;
+
+    @Test
+    public void percentileIsWithinAnEighthOfTheValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.recordNanos(micros * 1000);
+        }
+
+        long median = histogram.getPercentileMicros(50);
+        assertTrue("Median " + median, median >= 50000 && median <= 50000 * 9 / 8);
+        assertEquals(100000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void overflowHasABucketOfItsOwn() {
+        assertEquals(LatencyHistogram.OVERFLOW_BUCKET, LatencyHistogram.getBucket(LARGEST_REGULAR_MICROS + 1));
+        assertTrue(LatencyHistogram.getBucket(LARGEST_REGULAR_MICROS) < LatencyHistogram.OVERFLOW_BUCKET);
+        assertEquals(LARGEST_REGULAR_MICROS, LatencyHistogram.getBucketUpperBound(
+                LatencyHistogram.getBucket(LARGEST_REGULAR_MICROS)));
+    }
+
+    @Test
+    public void valuesInTheTopBucketAreNotTakenForOverflow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(LARGEST_REGULAR_MICROS * 1000);
+        histogram.recordNanos(LARGEST_REGULAR_MICROS * 1000);
+        histogram.recordNanos(Long.MAX_VALUE);
+
+        // Two of three values are in the top regular bucket, only the last percentile reaches the overflow
+        assertEquals(LARGEST_REGULAR_MICROS, histogram.getPercentileMicros(50));
+        assertEquals(Long.MAX_VALUE / 1000, histogram.getPercentileMicros(100));
+    }
+}
@@ -0,0 +1,150 @@
+package io.clubhub.idscanner.pipeline;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Compares the banded box mean threshold with the Gaussian adaptive threshold it stands in for. They
+// can't match exactly, a box is only a rough fit for a small Gaussian window. Each tolerance is the
+// share of pixels measured to differ on the seeded test image, about 4.1%, 0.93% and 0.19% for block
+// sizes 5, 13 and 21, with a little on top so a change to the box sizing or rounding fails the test
+public class TiledAdaptiveThresholdTest {
+    private static final double LOCALISER_TOLERANCE = 0.045;
+    private static final double BLOCK_13_TOLERANCE = 0.01;
+    private static final double BLOCK_21_TOLERANCE = 0.0025;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void localiserThresholdIsCloseToGaussian() {
+        // What the localiser sees of a preview frame's framing rect, a quarter of the size
+        assertCloseToGaussian(425, 175, PDF417Localiser.LOCALISATION_BLOCK_SIZE,
+                PDF417Localiser.LOCALISATION_THRESHOLD_OFFSET, true, LOCALISER_TOLERANCE);
+    }
+
+    @Test
+    public void ocrThresholdsAreCloseToGaussian() {
+        // The block sizes and offsets ImagePreProcessor uses on full resolution OCR crops
+        assertCloseToGaussian(1200, 700, 13, 10, true, BLOCK_13_TOLERANCE);
+        assertCloseToGaussian(1200, 700, 13, 10, false, BLOCK_13_TOLERANCE);
+        assertCloseToGaussian(1200, 700, 21, 20, false, BLOCK_21_TOLERANCE);
+    }
+
+    @Test
+    public void bandsGiveTheSameOutputAsOneBand() {
+        int width = 640;
+        int height = 479;
+        byte[] grey = createBarcodeImage(width, height);
+        byte[] expected = new byte[grey.length];
+        TiledAdaptiveThreshold.thresholdOnCallingThread(grey, expected, width, height, 13, 10, false);
+
+        // Forced rather than one per core, so the band edges get tested on any machine
+        for (int bandCount : new int[] {2, 3, 7, 16}) {
+            byte[] binary = new byte[grey.length];
+            TiledAdaptiveThreshold.threshold(grey, binary, width, height, 13, 10, false, bandCount);
+            assertArrayEquals(bandCount + " bands", expected, binary);
+        }
+    }
+
+    @Test
+    public void interruptedCallerStillWaitsForItsBands() {
+        int width = 1200;
+        int height = 700;
+        byte[] grey = createBarcodeImage(width, height);
+        byte[] expected = new byte[grey.length];
+        TiledAdaptiveThreshold.thresholdOnCallingThread(grey, expected, width, height, 13, 10, false);
+
+        // A cancelled decode interrupts its worker while the bands are out. Interrupted up front the
+        // wait for them is bound to see it
+        byte[] binary = new byte[grey.length];
+        Arrays.fill(binary, (byte) 1);
+        Thread.currentThread().interrupt();
+        try {
+            TiledAdaptiveThreshold.threshold(grey, binary, width, height, 13, 10, false, 8);
+        } finally {
+            assertTrue("The interrupt wasn't passed on", Thread.interrupted());
+        }
+
+        // Every band had written its rows before the call returned
+        assertArrayEquals(expected, binary);
+    }
+
+    @Test
+    public void inverseIsTheComplement() {
+        int width = 640;
+        int height = 480;
+        byte[] grey = createBarcodeImage(width, height);
+        byte[] binary = new byte[grey.length];
+        byte[] inverse = new byte[grey.length];
+
+        // A whole number offset rounds the same way for both
+        TiledAdaptiveThreshold.threshold(grey, binary, width, height, 13, 10, false);
+        TiledAdaptiveThreshold.threshold(grey, inverse, width, height, 13, 10, true);
+
+        for (int i = 0; i < grey.length; i++) {
+            assertEquals("Pixel " + i, (byte) ~binary[i], inverse[i]);
+        }
+    }
+
+    private static void assertCloseToGaussian(int width, int height, int blockSize, double c, boolean inverse,
+                                              double tolerance) {
+        byte[] grey = createBarcodeImage(width, height);
+        byte[] binary = new byte[grey.length];
+        TiledAdaptiveThreshold.threshold(grey, binary, width, height, blockSize, c, inverse, 4);
+
+        Mat greyMat = new Mat(height, width, CvType.CV_8UC1);
+        Mat expectedMat = new Mat(height, width, CvType.CV_8UC1);
+        byte[] expected = new byte[grey.length];
+        try {
+            greyMat.put(0, 0, grey);
+            Imgproc.adaptiveThreshold(greyMat, expectedMat, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+                    inverse ? Imgproc.THRESH_BINARY_INV : Imgproc.THRESH_BINARY, blockSize, c);
+            expectedMat.get(0, 0, expected);
+        } finally {
+            greyMat.release();
+            expectedMat.release();
+        }
+
+        int differing = 0;
+        for (int i = 0; i < grey.length; i++) {
+            if (binary[i] != expected[i]) {
+                differing++;
+            }
+        }
+        double ratio = (double) differing / grey.length;
+        assertTrue("Block size " + blockSize + ": " + differing + " of " + grey.length + " pixels differ",
+                ratio <= tolerance);
+    }
+
+    // Bars of a few widths across the middle of an unevenly lit card, with sensor noise on top. Seeded
+    // so every run thresholds the same pixels
+    private static byte[] createBarcodeImage(int width, int height) {
+        Random random = new Random(417);
+        byte[] grey = new byte[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double luminance = 120 + 60 * Math.sin(x * 0.01) + 40 * Math.cos(y * 0.02);
+                boolean inBarcode = x > width / 10 && x < width * 9 / 10 && y > height / 4 && y < height * 3 / 4;
+                if (inBarcode) {
+                    luminance = (x / 3 + (y / 12) * 7) % 5 < 2 ? 40 : 210;
+                }
+                luminance += random.nextGaussian() * 8;
+                grey[y * width + x] = (byte) Math.max(0, Math.min(255, (int) luminance));
+            }
+        }
+        return grey;
+    }
+}
@@ -0,0 +1,95 @@
+package io.clubhub.idscanner.benchmark;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+import io.clubhub.idscanner.pipeline.BarcodeDecoder;
+import io.clubhub.idscanner.pipeline.NV21LuminanceSource;
+import io.clubhub.idscanner.pipeline.PDF417BarcodeDecoder;
+import io.clubhub.idscanner.pipeline.PDF417Localiser;
+
+import com.google.zxing.RGBLuminanceSource;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Times the zxing decode of the located barcode regions, localisation is done once up front. The two
+// benchmarks decode the same regions, once read in place from the frame the way preview frames are
+// and once through the ARGB copy and RGBLuminanceSource the picture path used before, so the gc
+// profiler's bytes per op can be compared side by side
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private final BarcodeDecoder mDecoder = new PDF417BarcodeDecoder();
+    private final DecodeBatchToken mBatchToken = new DecodeBatchToken();
+
+    // Whole greyscale images, laid out like the Y plane of a preview frame
+    private List<byte[]> mFrames = new ArrayList<>();
+    private List<int[]> mFrameSizes = new ArrayList<>();
+    private List<Rect> mRegions = new ArrayList<>();
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        // Loading the corpus loads OpenCV, the localiser's kernels need it
+        List<Mat> greys = ScanCorpus.loadGreyImages();
+        PDF417Localiser localiser = new PDF417Localiser();
+
+        for (Mat grey : greys) {
+            Rect rect = localiser.locate(grey, mBatchToken, ScanCorpus.FRESH_MATS);
+            if (rect != null) {
+                byte[] frame = new byte[(int) grey.total()];
+                grey.get(0, 0, frame);
+
+                mFrames.add(frame);
+                mFrameSizes.add(new int[] {grey.cols(), grey.rows()});
+                mRegions.add(rect);
+            }
+            grey.release();
+        }
+
+        if (mRegions.isEmpty()) {
+            throw new IllegalStateException("No barcode could be located in the corpus");
+        }
+    }
+
+    // What a decode costs now, nothing is copied before zxing reads its rows
+    @Benchmark
+    public String decodeInPlace() {
+        next();
+        int[] frameSize = mFrameSizes.get(mIndex);
+        Rect rect = mRegions.get(mIndex);
+        return mDecoder.decode(new NV21LuminanceSource(mFrames.get(mIndex), frameSize[0], frameSize[1],
+                rect.x, rect.y, rect.width, rect.height), mBatchToken);
+    }
+
+    // What a decode cost before, the region was copied out as ARGB pixels (Bitmap.getPixels) and
+    // RGBLuminanceSource turned those back into greyscale. The Bitmap the pixels came from isn't
+    // counted, so this is the least the old path allocated
+    @Benchmark
+    public String decodeThroughRGB() {
+        next();
+        int frameWidth = mFrameSizes.get(mIndex)[0];
+        Rect rect = mRegions.get(mIndex);
+        byte[] frame = mFrames.get(mIndex);
+
+        int[] pixels = new int[rect.width * rect.height];
+        for (int y = 0; y < rect.height; y++) {
+            int frameOffset = (rect.y + y) * frameWidth + rect.x;
+            int pixelOffset = y * rect.width;
+            for (int x = 0; x < rect.width; x++) {
+                int luminance = frame[frameOffset + x] & 0xFF;
+                pixels[pixelOffset + x] = 0xFF000000 | (luminance << 16) | (luminance << 8) | luminance;
+            }
+        }
+        return mDecoder.decode(new RGBLuminanceSource(rect.width, rect.height, pixels), mBatchToken);
+    }
+
+    private void next() {
+        mIndex = (mIndex + 1) % mRegions.size();
+    }
+}
@@ -0,0 +1,55 @@
+package io.clubhub.idscanner.benchmark;
+
+import io.clubhub.idscanner.pipeline.AAMVAParser;
+import io.clubhub.idscanner.pipeline.IDFieldExtractor;
+import io.clubhub.idscanner.pipeline.IDRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+
+// Times pulling the ID fields out of decoded barcode text
+@State(Scope.Thread)
+public class FieldExtractionBenchmark {
+    private IDFieldExtractor mExtractor;
+    private final IDRecord mRecord = new IDRecord();
+
+    private List<String> mTexts;
+    private int mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTexts = ScanCorpus.loadBarcodeTexts();
+        mExtractor = new AAMVAParser(ScanCorpus.loadJurisdictions());
+    }
+
+    @Benchmark
+    public void extract(final Blackhole blackhole) {
+        mIndex = (mIndex + 1) % mTexts.size();
+        mExtractor.extract(mTexts.get(mIndex), mRecord, new IDFieldExtractor.FieldListener() {
+            @Override
+            public boolean onField(IDRecord record, int field) {
+                blackhole.consume(record.length(field));
+                return true;
+            }
+        });
+    }
+
+    // What the device pays on a valid ID, where every field ends up as a String in the JSON
+    @Benchmark
+    public void extractToStrings(final Blackhole blackhole) {
+        mIndex = (mIndex + 1) % mTexts.size();
+        mExtractor.extract(mTexts.get(mIndex), mRecord, new IDFieldExtractor.FieldListener() {
+            @Override
+            public boolean onField(IDRecord record, int field) {
+                blackhole.consume(record.getString(field));
+                return true;
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package io.clubhub.idscanner.benchmark;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+import io.clubhub.idscanner.pipeline.BarcodeDecoder;
+import io.clubhub.idscanner.pipeline.FrameQualityGate;
+import io.clubhub.idscanner.pipeline.NV21LuminanceSource;
+import io.clubhub.idscanner.pipeline.PDF417BarcodeDecoder;
+import io.clubhub.idscanner.pipeline.PDF417Localiser;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Times the quality gate over whole corpus images, and on setup prints each image's sharpness and glare
+// scores next to whether the localiser and zxing read it, which is what the gate's thresholds get
+// calibrated from. The scores depend on the scale the gate samples at, so they only carry over to the
+// device for corpus images saved at preview resolution
+@State(Scope.Thread)
+public class FrameQualityGateBenchmark {
+    private final FrameQualityGate mGate = new FrameQualityGate();
+
+    // Whole greyscale images, laid out like the Y plane of a preview frame
+    private List<byte[]> mFrames = new ArrayList<>();
+    private List<int[]> mFrameSizes = new ArrayList<>();
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        // Loading the corpus loads OpenCV, the localiser's kernels need it
+        List<Mat> greys = ScanCorpus.loadGreyImages();
+        PDF417Localiser localiser = new PDF417Localiser();
+        BarcodeDecoder decoder = new PDF417BarcodeDecoder();
+        DecodeBatchToken batchToken = new DecodeBatchToken();
+
+        int decodedRejected = 0;
+        int failedAccepted = 0;
+        System.out.println("image\tlaplacian variance\tsaturated ratio\tgate\tdecoded");
+
+        for (int i = 0; i < greys.size(); i++) {
+            Mat grey = greys.get(i);
+            int width = grey.cols();
+            int height = grey.rows();
+            byte[] frame = new byte[(int) grey.total()];
+            grey.get(0, 0, frame);
+
+            // A gate of its own per image, so no image is let through by the release after rejections
+            FrameQualityGate gate = new FrameQualityGate();
+            int result = gate.check(frame, width, 0, 0, width, height);
+
+            Rect rect = localiser.locate(grey, batchToken, ScanCorpus.FRESH_MATS);
+            boolean decoded = rect != null && decoder.decode(new NV21LuminanceSource(frame, width, height,
+                    rect.x, rect.y, rect.width, rect.height), batchToken) != null;
+
+            if (decoded && result != FrameQualityGate.ACCEPTED) {
+                decodedRejected++;
+            } else if (!decoded && result == FrameQualityGate.ACCEPTED) {
+                failedAccepted++;
+            }
+            System.out.println(i + "\t" + gate.getLastLaplacianVariance() + "\t" + gate.getLastSaturatedRatio()
+                    + "\t" + getResultName(result) + "\t" + decoded);
+
+            mFrames.add(frame);
+            mFrameSizes.add(new int[] {width, height});
+            grey.release();
+        }
+
+        System.out.println("Readable images the gate rejects: " + decodedRejected
+                + ", unreadable images it lets through: " + failedAccepted + " of " + greys.size());
+    }
+
+    @Benchmark
+    public int check() {
+        mIndex = (mIndex + 1) % mFrames.size();
+        int[] frameSize = mFrameSizes.get(mIndex);
+        return mGate.check(mFrames.get(mIndex), frameSize[0], 0, 0, frameSize[0], frameSize[1]);
+    }
+
+    private static String getResultName(int result) {
+        switch (result) {
+            case FrameQualityGate.REJECTED_BLURRY:
+                return "blurry";
+            case FrameQualityGate.REJECTED_GLARE:
+                return "glare";
+            default:
+                return "accepted";
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package io.clubhub.idscanner.benchmark;
+
+import io.clubhub.idscanner.imageutils.DecodeBatchToken;
+import io.clubhub.idscanner.pipeline.PDF417Localiser;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Times each localisation stage on its own, every stage gets the previous stage's output for the
+// same image as its input. Invocations cycle through the corpus
+@State(Scope.Thread)
+public class LocalisationBenchmark {
+    private PDF417Localiser mLocaliser;
+    private final DecodeBatchToken mBatchToken = new DecodeBatchToken();
+
+    private List<Mat> mGreys;
+    private List<Mat> mScaled = new ArrayList<>();
+    private List<Mat> mThresholded = new ArrayList<>();
+    private List<Mat> mMorphed = new ArrayList<>();
+    // Only images the localiser finds a barcode in take part in the crop stage
+    private List<Mat> mCropSources = new ArrayList<>();
+    private List<Rect> mCropRects = new ArrayList<>();
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        // Loading the corpus loads OpenCV, the localiser's kernels need it
+        mGreys = ScanCorpus.loadGreyImages();
+        mLocaliser = new PDF417Localiser();
+
+        for (Mat grey : mGreys) {
+            Mat scaled = mLocaliser.downscale(grey, ScanCorpus.FRESH_MATS);
+            Mat bw = mLocaliser.threshold(scaled, ScanCorpus.FRESH_MATS);
+            Mat morphed = mLocaliser.morphology(bw, ScanCorpus.FRESH_MATS);
+            mScaled.add(scaled);
+            mThresholded.add(bw);
+            mMorphed.add(morphed);
+
+            Rect scaledRect = mLocaliser.findCandidate(morphed.clone(), scaled);
+            if (scaledRect != null) {
+                mCropSources.add(grey);
+                mCropRects.add(mLocaliser.toFullResolution(scaledRect, grey));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        releaseAll(mGreys);
+        releaseAll(mScaled);
+        releaseAll(mThresholded);
+        releaseAll(mMorphed);
+    }
+
+    @Benchmark
+    public void downscale() {
+        ScanCorpus.FRESH_MATS.releaseMat(mLocaliser.downscale(mGreys.get(next(mGreys.size())),
+                ScanCorpus.FRESH_MATS));
+    }
+
+    @Benchmark
+    public void threshold() {
+        ScanCorpus.FRESH_MATS.releaseMat(mLocaliser.threshold(mScaled.get(next(mScaled.size())),
+                ScanCorpus.FRESH_MATS));
+    }
+
+    // The Gaussian adaptive threshold the localiser used before TiledAdaptiveThreshold, on the same
+    // images, to compare with threshold()
+    @Benchmark
+    public void thresholdGaussian() {
+        Mat scaled = mScaled.get(next(mScaled.size()));
+        Mat bw = ScanCorpus.FRESH_MATS.acquireMat(scaled.rows(), scaled.cols(), CvType.CV_8UC1);
+        Imgproc.adaptiveThreshold(scaled, bw, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+                Imgproc.THRESH_BINARY_INV, PDF417Localiser.LOCALISATION_BLOCK_SIZE,
+                PDF417Localiser.LOCALISATION_THRESHOLD_OFFSET);
+        ScanCorpus.FRESH_MATS.releaseMat(bw);
+    }
+
+    @Benchmark
+    public void morphology() {
+        ScanCorpus.FRESH_MATS.releaseMat(mLocaliser.morphology(mThresholded.get(next(mThresholded.size())),
+                ScanCorpus.FRESH_MATS));
+    }
+
+    @Benchmark
+    public Rect contourSearch() {
+        int i = next(mMorphed.size());
+        // findContours writes into its input, so it gets a copy
+        Mat morphed = mMorphed.get(i).clone();
+        try {
+            return mLocaliser.findCandidate(morphed, mScaled.get(i));
+        } finally {
+            morphed.release();
+        }
+    }
+
+    // The copy of the barcode region the picture path hands to the decoder
+    @Benchmark
+    public void crop() {
+        if (mCropRects.isEmpty()) {
+            return;
+        }
+        int i = next(mCropRects.size());
+        Mat region = new Mat(mCropSources.get(i), mCropRects.get(i));
+        Mat copy = region.clone();
+        region.release();
+        copy.release();
+    }
+
+    @Benchmark
+    public Rect locate() {
+        return mLocaliser.locate(mGreys.get(next(mGreys.size())), mBatchToken, ScanCorpus.FRESH_MATS);
+    }
+
+    private int next(int size) {
+        mIndex = (mIndex + 1) % size;
+        return mIndex;
+    }
+
+    private static void releaseAll(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        mats.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package io.clubhub.idscanner.benchmark;
+
+import io.clubhub.idscanner.pipeline.JurisdictionTable;
+import io.clubhub.idscanner.pipeline.MatAllocator;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Loads the stored license corpus. Images go in corpus/images (already cropped to the framing rect,
+// the way the device hands them to pre-processing) and decoded barcode text in corpus/barcodes.
+// The corpus holds real IDs so it is never committed
+final class ScanCorpus {
+    private static final String CORPUS_DIR_PROPERTY = "corpus.dir";
+    private static final String JURISDICTIONS_FILE_PROPERTY = "jurisdictions.file";
+
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    // Stands in for the device's session pool, so every stage pays for its own allocations
+    static final MatAllocator FRESH_MATS = new MatAllocator() {
+        @Override
+        public Mat acquireMat(int rows, int cols, int type) {
+            return new Mat(rows, cols, type);
+        }
+
+        @Override
+        public void releaseMat(Mat mat) {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+
+        @Override
+        public byte[] acquireBytes(int length) {
+            return new byte[length];
+        }
+
+        @Override
+        public void releaseBytes(byte[] bytes) {
+        }
+    };
+
+    private ScanCorpus() {
+    }
+
+    static List<Mat> loadGreyImages() {
+        List<Mat> images = new ArrayList<>();
+        for (File file : listFiles("images")) {
+            Mat grey = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+            if (!grey.empty()) {
+                images.add(grey);
+            }
+        }
+
+        if (images.isEmpty()) {
+            throw new IllegalStateException("No readable images in the corpus");
+        }
+        return images;
+    }
+
+    static List<String> loadBarcodeTexts() throws IOException {
+        List<String> texts = new ArrayList<>();
+        for (File file : listFiles("barcodes")) {
+            texts.add(readFully(file));
+        }
+
+        if (texts.isEmpty()) {
+            throw new IllegalStateException("No barcode text in the corpus");
+        }
+        return texts;
+    }
+
+    // The same profile file the app bundles
+    static JurisdictionTable loadJurisdictions() throws IOException {
+        return JurisdictionTable.parse(new FileInputStream(System.getProperty(JURISDICTIONS_FILE_PROPERTY,
+                "../app/src/main/res/raw/jurisdictions")));
+    }
+
+    private static List<File> listFiles(String folder) {
+        File dir = new File(System.getProperty(CORPUS_DIR_PROPERTY, "corpus"), folder);
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IllegalStateException("Corpus folder missing: " + dir.getAbsolutePath());
+        }
+
+        // Same order every run so results line up between runs
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            // AAMVA barcodes are plain ASCII
+            return out.toString("ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+}